@@ -0,0 +1,43 @@
+package org.apdplat.service.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在多个线程数下运行基准测试, 同时统计内存分配(相当于 -prof gc), 最后输出汇总
+ * 运行: java -cp target/benchmarks.jar org.apdplat.service.benchmark.BenchmarkRunner [基准测试正则] [线程数,线程数...]
+ * 默认运行所有基准测试, 线程数为1,4,16
+ * 吞吐量模式的结果越大越好, 平均时间模式的结果越小越好, 每次操作分配的字节数(gc.alloc.rate.norm)越小越好
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : "org.apdplat.service.benchmark.*Benchmark";
+        String threads = args.length > 1 ? args[1] : "1,4,16";
+        List<String> summary = new ArrayList<>();
+        for(String thread : threads.split(",")){
+            int n = Integer.parseInt(thread.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(n)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            for(RunResult result : new Runner(options).run()){
+                Result primary = result.getPrimaryResult();
+                Result allocation = result.getSecondaryResults().get("gc.alloc.rate.norm");
+                summary.add(String.format("%-70s %4d 线程 %14.3f %-8s %10s B/op",
+                        result.getParams().getBenchmark(), n, primary.getScore(), primary.getScoreUnit(),
+                        allocation == null ? "-" : String.format("%.1f", allocation.getScore())));
+            }
+        }
+        System.out.println();
+        System.out.println("汇总:");
+        summary.forEach(System.out::println);
+    }
+}
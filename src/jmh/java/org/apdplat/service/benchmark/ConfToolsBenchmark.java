@@ -0,0 +1,57 @@
+package org.apdplat.service.benchmark;
+
+import org.apdplat.service.configration.ConfKey;
+import org.apdplat.service.configration.ConfTools;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConfTools 基准测试, 对比每次查找并解析的 getInt/getBoolean 和预先解析的 ConfKey
+ * 运行: java -cp target/benchmarks.jar org.apdplat.service.benchmark.BenchmarkRunner ConfToolsBenchmark 1,4,16
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfToolsBenchmark {
+    private static final ConfKey<Integer> TIMEOUT = ConfKey.ofInt("search.api.timeout.millis", 1000);
+    private static final ConfKey<Boolean> STATUS_LOG_ENABLED = ConfKey.ofBoolean("status.log.enabled", true);
+
+    @Benchmark
+    public int getInt(){
+        return ConfTools.getInt("search.api.timeout.millis", 1000);
+    }
+
+    @Benchmark
+    public int getIntMissing(){
+        return ConfTools.getInt("benchmark.missing.key", 1000);
+    }
+
+    @Benchmark
+    public boolean getBoolean(){
+        return ConfTools.getBoolean("status.log.enabled", true);
+    }
+
+    @Benchmark
+    public String get(){
+        return ConfTools.get("redis.balancer", "round-robin");
+    }
+
+    @Benchmark
+    public int confKeyInt(){
+        return TIMEOUT.get();
+    }
+
+    @Benchmark
+    public boolean confKeyBoolean(){
+        return STATUS_LOG_ENABLED.get();
+    }
+
+    @Benchmark
+    public long getVersion(){
+        return ConfTools.getVersion();
+    }
+}
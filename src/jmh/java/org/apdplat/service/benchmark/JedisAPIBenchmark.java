@@ -0,0 +1,79 @@
+package org.apdplat.service.benchmark;
+
+import org.apdplat.service.api.JedisAPI;
+import org.apdplat.service.configration.ConfTools;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JedisAPI 基准测试, 连接两个进程内的REDIS协议桩服务
+ * getJedis*: 获取连接, 执行一个命令, 归还连接
+ * get/set: 通过JedisAPI的封装执行, 包括熔断, 并发上限及失败转移
+ * JedisAPI是单例, 在第一次使用时按当前配置初始化, 每个基准测试必须在单独的JVM中运行(Fork大于0)
+ * 运行: java -cp target/benchmarks.jar org.apdplat.service.benchmark.BenchmarkRunner JedisAPIBenchmark 1,4,16
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JedisAPIBenchmark {
+    private static final String KEY = "benchmark:key";
+    private static final String VALUE = "benchmark-value";
+
+    private StubRedisServer server1;
+    private StubRedisServer server2;
+    private JedisAPI jedisAPI;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server1 = new StubRedisServer();
+        server2 = new StubRedisServer();
+        ConfTools.set("status.log.enabled", "false");
+        // 连接数不少于测试线程数, 不阻塞等待连接
+        ConfTools.set("redis.pool.maxTotal", "64");
+        ConfTools.set("redis.pool.maxIdle", "64");
+        ConfTools.set("redis.servers", "127.0.0.1:" + server1.getPort() + ":benchmark, 127.0.0.1:" + server2.getPort() + ":benchmark");
+        // 每个服务都有这个KEY, 不论GET发到哪个服务都能读到
+        for(StubRedisServer server : new StubRedisServer[]{server1, server2}){
+            try (Jedis jedis = new Jedis("127.0.0.1", server.getPort())) {
+                jedis.set(KEY, VALUE);
+            }
+        }
+        jedisAPI = JedisAPI.getInstance();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        jedisAPI.close();
+        server1.close();
+        server2.close();
+    }
+
+    @Benchmark
+    public String getJedisGet(){
+        try (Jedis jedis = jedisAPI.getJedis()) {
+            return jedis.get(KEY);
+        }
+    }
+
+    @Benchmark
+    public String getJedisSet(){
+        try (Jedis jedis = jedisAPI.getJedis()) {
+            return jedis.set(KEY, VALUE);
+        }
+    }
+
+    @Benchmark
+    public String get(){
+        return jedisAPI.get(KEY);
+    }
+
+    @Benchmark
+    public String set(){
+        return jedisAPI.set(KEY, VALUE);
+    }
+}
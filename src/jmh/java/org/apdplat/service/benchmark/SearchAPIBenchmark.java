@@ -0,0 +1,49 @@
+package org.apdplat.service.benchmark;
+
+import org.apdplat.service.configration.ConfTools;
+import org.apdplat.service.impl.SearchAPIImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SearchAPIImpl.search 基准测试, 调用两个进程内的搜索服务桩, 包括负载均衡, 熔断, 并发上限及HTTP往返
+ * 运行: java -cp target/benchmarks.jar org.apdplat.service.benchmark.BenchmarkRunner SearchAPIBenchmark 1,4,16
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class SearchAPIBenchmark {
+    private StubSearchServer server1;
+    private StubSearchServer server2;
+    private SearchAPIImpl searchAPI;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server1 = new StubSearchServer(16);
+        server2 = new StubSearchServer(16);
+        ConfTools.set("status.log.enabled", "false");
+        ConfTools.set("search.api.server.urls", server1.getUrl() + ", " + server2.getUrl());
+        searchAPI = new SearchAPIImpl();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        searchAPI.close();
+        server1.close();
+        server2.close();
+    }
+
+    @Benchmark
+    public String search(){
+        return searchAPI.search("CCTV", 10);
+    }
+
+    @Benchmark
+    public String searchAsync(){
+        return searchAPI.searchAsync("CCTV", 10).join();
+    }
+}
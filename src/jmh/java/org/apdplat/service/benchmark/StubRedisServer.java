@@ -0,0 +1,201 @@
+package org.apdplat.service.benchmark;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 进程内的REDIS协议(RESP)桩服务, 每个连接一个线程
+ * 支持 AUTH SELECT PING ECHO GET SET DEL PUBLISH SUBSCRIBE QUIT, 其它命令返回错误
+ * PUBLISH 不转发消息, 只返回0个订阅者, SUBSCRIBE 只确认订阅
+ * 输入缓冲区没有更多命令时才刷新输出, 管道中的多个命令一次写回
+ */
+public class StubRedisServer implements Closeable {
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL = "$-1\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ZERO = ":0\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Map<String, byte[]> data = new ConcurrentHashMap<>();
+    private final ServerSocket serverSocket;
+    private final ExecutorService executorService = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "stub-redis");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 在本机的随机端口上启动
+     * @throws IOException
+     */
+    public StubRedisServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+        executorService.submit(this::accept);
+    }
+
+    public int getPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executorService.shutdownNow();
+    }
+
+    private void accept(){
+        while (!serverSocket.isClosed()){
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executorService.submit(() -> serve(socket));
+            } catch (IOException e) {
+                // 已经关闭
+            }
+        }
+    }
+
+    private void serve(Socket socket){
+        try (Socket s = socket;
+             InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            while (true) {
+                byte[][] args = readCommand(in);
+                if (args == null) {
+                    return;
+                }
+                String command = new String(args[0], StandardCharsets.UTF_8).toUpperCase();
+                switch (command) {
+                    case "AUTH":
+                    case "SELECT":
+                        out.write(OK);
+                        break;
+                    case "PING":
+                        out.write(PONG);
+                        break;
+                    case "ECHO":
+                        writeBulk(out, args[1]);
+                        break;
+                    case "GET":
+                        writeBulk(out, data.get(key(args[1])));
+                        break;
+                    case "SET":
+                        data.put(key(args[1]), args[2]);
+                        out.write(OK);
+                        break;
+                    case "DEL":
+                        int deleted = 0;
+                        for (int i = 1; i < args.length; i++) {
+                            if (data.remove(key(args[i])) != null) {
+                                deleted++;
+                            }
+                        }
+                        out.write((":" + deleted + "\r\n").getBytes(StandardCharsets.UTF_8));
+                        break;
+                    case "PUBLISH":
+                        out.write(ZERO);
+                        break;
+                    case "SUBSCRIBE":
+                        for (int i = 1; i < args.length; i++) {
+                            out.write(("*3\r\n$9\r\nsubscribe\r\n").getBytes(StandardCharsets.UTF_8));
+                            writeBulk(out, args[i]);
+                            out.write((":" + i + "\r\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                        break;
+                    case "QUIT":
+                        out.write(OK);
+                        out.flush();
+                        return;
+                    default:
+                        out.write(("-ERR unknown command '" + command + "'\r\n").getBytes(StandardCharsets.UTF_8));
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (SocketException e) {
+            // 客户端断开
+        } catch (IOException e) {
+            // 客户端断开
+        }
+    }
+
+    private static String key(byte[] key){
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        out.write(("$" + value.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(value);
+        out.write(CRLF);
+    }
+
+    /**
+     * 读取一个命令, 客户端发送的命令是批量字符串组成的数组
+     * @param in
+     * @return 连接关闭时返回null
+     * @throws IOException
+     */
+    private static byte[][] readCommand(InputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("不支持的请求类型: " + (char) type);
+        }
+        int count = (int) readNumber(in);
+        byte[][] args = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("参数不是批量字符串");
+            }
+            int length = (int) readNumber(in);
+            byte[] arg = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(arg, read, length - read);
+                if (n == -1) {
+                    return null;
+                }
+                read += n;
+            }
+            // \r\n
+            in.read();
+            in.read();
+            args[i] = arg;
+        }
+        return args;
+    }
+
+    private static long readNumber(InputStream in) throws IOException {
+        long value = 0;
+        boolean negative = false;
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c == '-') {
+                negative = true;
+            } else {
+                value = value * 10 + (c - '0');
+            }
+        }
+        // \n
+        in.read();
+        return negative ? -value : value;
+    }
+}
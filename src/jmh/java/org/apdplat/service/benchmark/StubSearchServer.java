@@ -0,0 +1,61 @@
+package org.apdplat.service.benchmark;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 进程内的搜索服务桩, 对任何请求返回固定的JSON结果
+ * JDK的HttpServer默认不关闭Nagle算法, 每个响应会多等待约40毫秒, 必须在HttpServer类加载之前设置 sun.net.httpserver.nodelay=true
+ */
+public class StubSearchServer implements Closeable {
+    static {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private static final byte[] RESULT = ("[{\"id\":1,\"name\":\"CCTV-1\",\"type\":\"channel\"}"
+            + ",{\"id\":2,\"name\":\"CCTV-2\",\"type\":\"channel\"}"
+            + ",{\"id\":3,\"name\":\"CCTV-3\",\"type\":\"channel\"}]").getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executorService;
+
+    /**
+     * 在本机的随机端口上启动
+     * @param threads 处理请求的线程数
+     * @throws IOException
+     */
+    public StubSearchServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+        executorService = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "stub-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executorService);
+        server.createContext("/search.jsp", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+            exchange.sendResponseHeaders(200, RESULT.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESULT);
+            }
+        });
+        server.start();
+    }
+
+    public String getUrl(){
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/search.jsp";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executorService.shutdownNow();
+    }
+}
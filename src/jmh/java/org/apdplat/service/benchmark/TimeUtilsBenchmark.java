@@ -0,0 +1,90 @@
+package org.apdplat.service.benchmark;
+
+import org.apdplat.service.utils.TimeUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimeUtils基准测试, 对比每次新建SimpleDateFormat的原实现和缓存格式及按偏移计算的实现
+ * 运行: java -jar target/benchmarks.jar TimeUtilsBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimeUtilsBenchmark {
+    private static final String PATTERN = "yyyy/MM/dd HH:mm:ss";
+
+    private long time;
+    private String text;
+
+    @Setup(Level.Iteration)
+    public void setUp(){
+        time = System.currentTimeMillis();
+        text = new SimpleDateFormat(PATTERN).format(new Date(time));
+    }
+
+    /**
+     * 原实现: 每次新建SimpleDateFormat
+     */
+    @Benchmark
+    public String toStringNewFormat(){
+        return new SimpleDateFormat(PATTERN).format(new Date(time++));
+    }
+
+    /**
+     * 缓存的格式, 同一秒内返回上次的结果
+     */
+    @Benchmark
+    public String toStringSameSecond(){
+        return TimeUtils.toString(time);
+    }
+
+    /**
+     * 缓存的格式, 每次都是新的一秒
+     */
+    @Benchmark
+    public String toStringNewSecond(){
+        time += 1000;
+        return TimeUtils.toString(time);
+    }
+
+    @Benchmark
+    public long fromStringNewFormat() throws Exception {
+        return new SimpleDateFormat(PATTERN).parse(text).getTime();
+    }
+
+    @Benchmark
+    public long fromString(){
+        return TimeUtils.fromString(text);
+    }
+
+    /**
+     * 原实现: 格式化成字符串再解析
+     */
+    @Benchmark
+    public long trimToMinuteByString() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd HH:mm");
+        return format.parse(format.format(new Date(time++))).getTime();
+    }
+
+    @Benchmark
+    public long trimToMinute(){
+        return TimeUtils.trimToMinute(time++);
+    }
+
+    @Benchmark
+    public long trimToDay(){
+        return TimeUtils.trimToDay(time++);
+    }
+
+    @Benchmark
+    public long currentTimeMillis(){
+        return System.currentTimeMillis();
+    }
+}
@@ -1,97 +1,430 @@
 package org.apdplat.service.api;
 
+import org.apdplat.service.cache.RedisNearCache;
+import org.apdplat.service.configration.ConfKey;
 import org.apdplat.service.configration.ConfManager;
 import org.apdplat.service.configration.ConfTools;
+import org.apdplat.service.ha.CircuitBreaker;
+import org.apdplat.service.ha.ConcurrencyLimiter;
+import org.apdplat.service.ha.ConsistentHashRing;
+import org.apdplat.service.ha.HealthChecker;
+import org.apdplat.service.ha.LoadBalancer;
+import org.apdplat.service.ha.LoadBalancers;
+import org.apdplat.service.ha.WarmUp;
+import org.apdplat.service.metrics.LatencyHistogram;
+import org.apdplat.service.metrics.RollingCounter;
+import org.apdplat.service.redis.AutoPipeline;
+import org.apdplat.service.redis.ReconfigurableJedisPool;
+import org.apdplat.service.redis.ReplicaRepairs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 /**
  * Created by ysc on 7/6/16.
  */
 public class JedisAPI  implements Observer {
     private static final Logger LOGGER = LoggerFactory.getLogger(JedisAPI.class);
+    private static final ConfKey<Boolean> STATUS_LOG_ENABLED = ConfKey.ofBoolean("status.log.enabled", true);
+    // 自动管道在请求线程上按需创建, 配置项预先解析
+    private static final ConfKey<Integer> PIPELINE_CONNECTIONS = ConfKey.ofInt("redis.pipeline.connections", 2);
+    private static final ConfKey<Integer> PIPELINE_MAX_BATCH = ConfKey.ofInt("redis.pipeline.max.batch", 100);
+    private static final ConfKey<Integer> PIPELINE_LINGER_MICROS = ConfKey.ofInt("redis.pipeline.linger.micros", 50);
+    private static final ConfKey<Integer> PIPELINE_QUEUE_CAPACITY = ConfKey.ofInt("redis.pipeline.queue.capacity", 10000);
 
-    private List<JedisPool> availablePools = new CopyOnWriteArrayList<>();
-    private List<JedisPool> unavailablePools = new CopyOnWriteArrayList<>();
-    private AtomicInteger totalCallTimes = new AtomicInteger();
-    private Map<String, AtomicInteger> callSuccessHistories = new ConcurrentHashMap<>();
-    private Map<String, AtomicInteger> callFailureHistories = new ConcurrentHashMap<>();
-    private Map<String, String> poolToServer = new ConcurrentHashMap<>();
+    // 可用及不可用连接池的不可变快照, 变化时在poolsLock内整体替换, 调用路径直接按下标读取
+    private volatile List<JedisPool> availablePools = Collections.emptyList();
+    private volatile List<JedisPool> unavailablePools = Collections.emptyList();
+    private final Object poolsLock = new Object();
+    private LongAdder totalCallTimes = new LongAdder();
+    // 每个REDIS服务的统计, KEY为 ip:port, 配置重新加载后继续累计
+    private Map<String, ServerStats> serverStats = new ConcurrentHashMap<>();
+    // 连接池到REDIS服务统计的映射, 加载配置时建立, 不可变, 调用路径上直接取得统计对象, 不需要构造KEY
+    private volatile Map<JedisPool, ServerStats> poolStats = Collections.emptyMap();
     private static final String DETECT_KEY = "redis_ha_detector";
 
+    /**
+     * REDIS服务的使用方式
+     */
+    private enum Mode {
+        // 每个REDIS服务都可以处理任何命令, 由负载均衡策略选择
+        BALANCED,
+        // 每个REDIS服务保存一部分KEY, 按KEY在一致性哈希环上选择
+        SHARDED,
+        // 每个REDIS服务是一个副本, 写入所有副本, 读取一个副本
+        REPLICATED
+    }
+
+    private volatile Mode mode = Mode.BALANCED;
+
+    // 副本写入模式下写入成功的副本数达到这个值时写入成功
+    private volatile int writeQuorum = 1;
+
+    // execute执行幂等操作时最多发送几次命令, 连接出错时换一个REDIS服务重试
+    private volatile int executeMaxAttempts = 2;
+
+    private ReplicaRepairs<JedisPool> repairs = new ReplicaRepairs<>(this::server);
+
+    private volatile LoadBalancer<JedisPool> balancer = LoadBalancers.create(null);
+
+    private volatile String balancerName;
+
+    private Map<JedisPool, CircuitBreaker<JedisPool>> breakers = new ConcurrentHashMap<>();
+
+    // getJedis在熔断器HALF_OPEN状态下借出的连接, 连接正常归还时才算试探成功
+    private Map<Jedis, CircuitBreaker<JedisPool>> halfOpenBorrows = new ConcurrentHashMap<>();
+
+    // 每个连接池的自适应并发上限, 限制execute及异步命令, getJedis返回的连接由调用者持有, 不受限制
+    private ConcurrencyLimiter<JedisPool> limiter = new ConcurrencyLimiter<>();
+
+    private volatile CircuitBreaker.Settings breakerSettings = CircuitBreaker.Settings.load("redis.breaker.");
+
     private ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
 
+    // 轻量的定时任务, 如熔断器进入半开状态, 任务不能阻塞
+    private ScheduledExecutorService timerExecutorService = Executors.newSingleThreadScheduledExecutor();
+
+    // 延迟关闭配置重新加载时移除的连接池, 关闭连接可能阻塞, 不使用其它定时任务的线程
+    private ScheduledExecutorService drainExecutorService = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 分片模式下KEY到REDIS服务的一致性哈希环, 非分片模式为null
+    private volatile ConsistentHashRing<JedisPool> ring;
+
+    // 按配置顺序排列的连接池
+    private volatile List<JedisPool> configuredPools = Collections.emptyList();
+
+    // ip:port:password:readTimeout 到连接池的映射, 配置重新加载时据此找出没有变化的连接池
+    private Map<String, JedisPool> poolSpecs = Collections.emptyMap();
+
+    // 近端缓存失效通知当前使用的连接池
+    private volatile JedisPool channelPool;
+
+    private RedisNearCache nearCache = new RedisNearCache(this::getChannelJedis, this::publishInvalidation);
+
+    // 每个连接池的自动管道, 第一次异步调用时创建
+    // 命令的附件是提交时使用的负载均衡策略, 配置重新加载后仍在原来的负载均衡策略上结束
+    private Map<JedisPool, AutoPipeline<LoadBalancer<JedisPool>>> pipelines = new ConcurrentHashMap<>();
+
+    // 健康检查使用的连接, 每个REDIS服务一个, 不占用连接池中的连接
+    private Map<JedisPool, ProbeConnection> probeConnections = new ConcurrentHashMap<>();
+
+    private HealthChecker<JedisPool> healthChecker = new HealthChecker<>(this::ping, this::onHealthChange);
+
+    // 定时发起健康检查, 探测可能阻塞到超时, 不使用其它定时任务的线程
+    private ScheduledExecutorService healthCheckExecutorService = Executors.newSingleThreadScheduledExecutor();
+    // 并行执行各个服务的探测
+    private ExecutorService probeExecutorService = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "redis-health-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 正在探测的服务
+    private Set<JedisPool> probingPools = ConcurrentHashMap.newKeySet();
+
+    private final int healthCheckIntervalMillis = ConfTools.getInt("redis.health.check.interval.millis", 1000);
+
+    // 连接池进入轮转之前建立连接并PING几次
+    private WarmUp<JedisPool> warmUp = new WarmUp<>("REDIS连接预热", this::server, new WarmUp.Warmer<JedisPool>() {
+        @Override
+        public void connect(JedisPool pool) {
+            pool.addObjects(1);
+        }
+
+        @Override
+        public void probe(JedisPool pool) {
+            try (Jedis jedis = pool.getResource()) {
+                jedis.ping();
+            }
+        }
+    });
+
     private JedisAPI() {
-        // 注册观察者
-        ConfManager.addObserver(this);
-        // 定时检查不可用服务是否已经恢复
-        scheduledExecutorService.scheduleAtFixedRate(()->validUnavailablePools(),
+        // 注册观察者, 只关注本服务的配置项
+        ConfManager.addObserver(this, "redis.");
+        // 定时检查不可用服务是否已经恢复, 并继续上次没有完成的副本修复
+        scheduledExecutorService.scheduleAtFixedRate(()->{validUnavailablePools(); repairPending();},
                 ConfTools.getInt("unavailable.urls.schedule.initial.delay.seconds", 60),
                 ConfTools.getInt("unavailable.urls.schedule.period.seconds", 60),
                 TimeUnit.SECONDS);
+        // 定时探测所有服务, 不在借用连接时校验连接
+        if(healthCheckIntervalMillis > 0) {
+            healthCheckExecutorService.scheduleWithFixedDelay(() -> checkHealth(),
+                    healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        }
         // 初始化服务
         init(ConfTools.get("redis.servers"));
     }
 
-    private void init(String servers){
+    private synchronized void init(String servers){
         if(servers == null || "".equals(servers.trim())){
             LOGGER.error("配置文件中没有指定REDIS服务地址");
             return;
         }
-        try {
-            availablePools.forEach(jedisPool -> jedisPool.close());
-            availablePools.clear();
-            unavailablePools.forEach(jedisPool -> jedisPool.close());
-            unavailablePools.clear();
-            poolToServer.clear();
-        }catch (Throwable e){
-            LOGGER.error("清理REDIS连接池失败", e);
+        String balancerName = ConfTools.get("redis.balancer", "round-robin");
+        if(!balancerName.equals(this.balancerName)) {
+            // 策略不变时保留在途调用数及耗时统计
+            balancer = LoadBalancers.create(balancerName);
+            this.balancerName = balancerName;
+        }
+        LOGGER.info("REDIS负载均衡策略: {}", balancerName);
+        CircuitBreaker.Settings settings = CircuitBreaker.Settings.load("redis.breaker.");
+        if(!settings.equals(breakerSettings)) {
+            // 熔断器使用创建时的配置, 配置变化时重新创建
+            breakerSettings = settings;
+            breakers.clear();
         }
+        LOGGER.info("REDIS熔断器: {}", breakerSettings);
+        limiter.configure(ConfTools.getBoolean("redis.limit.enabled", false),
+                ConfTools.getInt("redis.limit.initial", 20),
+                ConfTools.getInt("redis.limit.min", 1),
+                ConfTools.getInt("redis.limit.max", 200),
+                ConfTools.getInt("redis.limit.latency.tolerance.percent", 200),
+                ConfTools.getInt("redis.limit.backoff.percent", 90));
+        LOGGER.info("REDIS自适应并发上限: {}", limiter.isEnabled() ? "启用" : "未启用");
+        JedisPoolConfig config = poolConfig();
+        int readTimeoutMillis = ConfTools.getInt("redis.pool.readTimeoutMillis", 2000);
+        int probeTimeoutMillis = ConfTools.getInt("redis.health.check.timeout.millis", 500);
+        // 地址, 密码及读超时都没有变化的REDIS服务保留原来的连接池, 连接, 健康状态及熔断器
+        Map<String, JedisPool> specs = new LinkedHashMap<>();
+        List<JedisPool> pools = new ArrayList<>();
+        List<JedisPool> added = new ArrayList<>();
+        Map<JedisPool, ServerStats> stats = new IdentityHashMap<>();
+        Map<JedisPool, ProbeConnection> probes = new HashMap<>();
         for(String server : servers.split(",")){
             String[] attr = server.trim().split(":");
-            JedisPool pool = initPool(attr[0].trim(), Integer.parseInt(attr[1].trim()), attr[2].trim());
+            String ip = attr[0].trim();
+            int port = Integer.parseInt(attr[1].trim());
+            String password = attr[2].trim();
+            String spec = ip + ":" + port + ":" + password + ":" + readTimeoutMillis;
+            if(specs.containsKey(spec)){
+                continue;
+            }
+            JedisPool pool = poolSpecs.get(spec);
             if(pool != null){
-                poolToServer.put(pool.toString(), attr[0]+":"+attr[1]);
+                ((ReconfigurableJedisPool) pool).reconfigure(config);
+                probeConnections.get(pool).configure(probeTimeoutMillis);
+            }else{
+                pool = initPool(ip, port, password, config, readTimeoutMillis);
+                if(pool == null){
+                    continue;
+                }
+                added.add(pool);
+                probes.put(pool, new ProbeConnection(ip, port, password, probeTimeoutMillis));
+            }
+            specs.put(spec, pool);
+            stats.put(pool, serverStats.computeIfAbsent(ip+":"+port, ServerStats::new));
+            pools.add(pool);
+        }
+        List<JedisPool> removed = new ArrayList<>(configuredPools);
+        removed.removeAll(pools);
+        LOGGER.info("REDIS服务: 保留 {} 个, 增加 {} 个, 移除 {} 个", pools.size() - added.size(), added.size(), removed.size());
+        // 预热期间原来的连接池继续提供服务, 新旧连接池的统计同时可用
+        Map<JedisPool, ServerStats> allStats = new IdentityHashMap<>(poolStats);
+        allStats.putAll(stats);
+        poolStats = Collections.unmodifiableMap(allStats);
+        warmUp.configure(Math.min(ConfTools.getInt("redis.warmup.connections", 4), ConfTools.getInt("redis.pool.maxIdle", 8)),
+                ConfTools.getInt("redis.warmup.probe.queries", 1),
+                ConfTools.getInt("redis.warmup.threads", 8),
+                ConfTools.getInt("redis.warmup.timeout.millis", 3000));
+        List<JedisPool> failed = warmUp.warm(added);
+        probeConnections.putAll(probes);
+        configuredPools = Collections.unmodifiableList(pools);
+        poolSpecs = specs;
+        // 加入新的连接池和移除原来的连接池在同一个快照中生效, 切换期间总有连接池可用
+        synchronized (poolsLock) {
+            List<JedisPool> available = new ArrayList<>(availablePools);
+            List<JedisPool> unavailable = new ArrayList<>(unavailablePools);
+            for (JedisPool pool : added) {
+                if (failed.contains(pool)) {
+                    unavailable.add(pool);
+                } else {
+                    available.add(pool);
+                }
+            }
+            available.removeAll(removed);
+            unavailable.removeAll(removed);
+            availablePools = LoadBalancers.snapshot(available);
+            unavailablePools = LoadBalancers.snapshot(unavailable);
+        }
+        // 先去掉移除的连接池的统计, 之后完成的调用不会再为它们创建熔断器及自动管道
+        poolStats = Collections.unmodifiableMap(new IdentityHashMap<>(stats));
+        for(JedisPool pool : removed){
+            breakers.remove(pool);
+            balancer.remove(pool);
+            limiter.remove(pool);
+            healthChecker.remove(pool);
+            repairs.remove(pool);
+            ProbeConnection connection = probeConnections.remove(pool);
+            if(connection != null){
+                connection.close();
+            }
+        }
+        drain(removed, ConfTools.getInt("redis.reload.drain.millis", 5000));
+        onAvailabilityChange();
+        Mode previousMode = mode;
+        mode = mode(ConfTools.get("redis.mode", "balanced"));
+        LOGGER.info("REDIS服务使用方式: {}", mode.name().toLowerCase());
+        if(mode == Mode.SHARDED){
+            int virtualNodes = ConfTools.getInt("redis.sharding.virtual.nodes", 160);
+            if(virtualNodes <= 0){
+                LOGGER.error("REDIS分片模式的虚拟节点数必须大于0, 使用默认值 160: {}", virtualNodes);
+                virtualNodes = 160;
+            }
+            // 虚拟节点的位置由 ip:port 决定, 配置重新加载后KEY的归属不变
+            ring = new ConsistentHashRing<>(pools, this::server, virtualNodes);
+            LOGGER.info("REDIS分片模式: 一致性哈希, 每个服务 {} 个虚拟节点", virtualNodes);
+        }else{
+            ring = null;
+        }
+        executeMaxAttempts = ConfTools.getInt("redis.execute.max.attempts", 2);
+        healthChecker.configure(ConfTools.getInt("redis.health.check.fall", 2), ConfTools.getInt("redis.health.check.rise", 2));
+        if(mode != Mode.REPLICATED){
+            repairs.clear();
+        }
+        repairs.configure(ConfTools.getInt("redis.replication.repair.max.keys", 100000));
+        int quorum = ConfTools.getInt("redis.replication.write.quorum", 0);
+        // 小于等于0时为多数副本, 不超过副本数
+        writeQuorum = quorum <= 0 ? pools.size() / 2 + 1 : Math.min(quorum, pools.size());
+        if(mode == Mode.REPLICATED){
+            LOGGER.info("REDIS副本写入模式: {} 个副本, 写入成功 {} 个副本即返回", pools.size(), writeQuorum);
+        }
+        String prefixes = ConfTools.get("redis.near.cache.key.prefixes", "").trim();
+        nearCache.configure(ConfTools.getInt("redis.near.cache.max.entries", 0),
+                ConfTools.getInt("redis.near.cache.max.bytes", 0),
+                ConfTools.getInt("redis.near.cache.ttl.seconds", 10)*1000L,
+                "".equals(prefixes) ? new String[0] : prefixes.split("\\s*,\\s*"),
+                ConfTools.get("redis.near.cache.invalidation.channel", "").trim());
+        if(!added.isEmpty() || !removed.isEmpty() || mode != previousMode) {
+            // 缓存的数据可能来自已经移除的REDIS服务, 分片模式下KEY的归属也可能变化
+            nearCache.invalidateAll();
+        }
+        LOGGER.info("REDIS近端缓存: {}", nearCache.isEnabled() ? "启用" : "未启用");
+    }
+
+    /**
+     * 移除的连接池已经不在轮转中, 等待借出的连接及自动管道中的命令完成后关闭
+     * 关闭后归还的连接直接断开
+     * @param pools
+     * @param drainMillis
+     */
+    private void drain(List<JedisPool> pools, long drainMillis){
+        if(pools.isEmpty()){
+            return;
+        }
+        Runnable close = () -> {
+            for(JedisPool pool : pools){
+                try {
+                    AutoPipeline<LoadBalancer<JedisPool>> pipeline = pipelines.remove(pool);
+                    if(pipeline != null){
+                        pipeline.close();
+                    }
+                    pool.close();
+                }catch (Throwable e){
+                    LOGGER.error("关闭REDIS连接池失败", e);
+                }
             }
+            LOGGER.info("已关闭移除的REDIS连接池: {} 个", pools.size());
+        };
+        try {
+            drainExecutorService.schedule(close, Math.max(0, drainMillis), TimeUnit.MILLISECONDS);
+        }catch (RejectedExecutionException e){
+            // 已经关闭
+            close.run();
+        }
+    }
+
+    /**
+     * 连接池的连接已经借完, 没有等到归还的连接
+     * @param e
+     * @return
+     */
+    private static boolean exhausted(Throwable e){
+        return e instanceof JedisConnectionException && e.getCause() instanceof NoSuchElementException;
+    }
+
+    private static Mode mode(String name){
+        switch (name.trim().toLowerCase()){
+            case "balanced": return Mode.BALANCED;
+            case "sharded": return Mode.SHARDED;
+            case "replicated": return Mode.REPLICATED;
+            default:
+                LOGGER.error("不支持的REDIS服务使用方式: {}, 使用 balanced", name);
+                return Mode.BALANCED;
         }
     }
 
     /**
      * 配置发生变化, 重新初始化服务
      * @param o
-     * @param arg
+     * @param arg 发生变化的配置项
      */
     @Override
     public void update(Observable o, Object arg) {
-        LOGGER.info("收到配置文件已经发生变化的通知");
+        LOGGER.info("收到配置文件已经发生变化的通知: {}", arg);
         init(ConfTools.get("redis.servers"));
     }
 
     public void close() {
+        nearCache.close();
+        pipelines.values().forEach(pipeline -> pipeline.close());
         scheduledExecutorService.shutdownNow();
+        timerExecutorService.shutdownNow();
+        // 已经安排的关闭任务仍然执行
+        drainExecutorService.shutdown();
+        healthCheckExecutorService.shutdownNow();
+        probeExecutorService.shutdownNow();
+        probeConnections.values().forEach(connection -> connection.close());
     }
 
     public String getStatus() {
         StringBuilder status = new StringBuilder();
-        status.append("总获取REDIS连接次数: ").append(totalCallTimes.get()).append(" 次\n");
+        status.append("总获取REDIS连接次数: ").append(totalCallTimes.sum()).append(" 次\n");
+        ConsistentHashRing<JedisPool> ring = this.ring;
+        Mode mode = this.mode;
+        status.append("REDIS服务使用方式: ").append(mode.name().toLowerCase());
+        if(mode == Mode.REPLICATED){
+            status.append(", 写入成功 ").append(writeQuorum).append(" 个副本即返回");
+        }
+        status.append("\n");
+        status.append("REDIS健康检查: ").append(healthCheckIntervalMillis > 0 ? "每 " + healthCheckIntervalMillis + " 毫秒PING一次" : "未启用").append("\n");
+        status.append(warmUp.getStatus()).append("\n");
+        if(nearCache.isEnabled()){
+            status.append(nearCache.getStatus()).append("\n");
+        }
         if(!availablePools.isEmpty()){
             status.append("可用REDIS连接池: \n");
             int i=1;
             for(JedisPool pool : availablePools){
-                status.append("\t").append(i++).append(". ").append(poolToServer.get(pool.toString()))
+                status.append("\t").append(i++).append(". ").append(server(pool))
                         .append("\t")
                         .append("getMaxBorrowWaitTimeMillis: ").append(pool.getMaxBorrowWaitTimeMillis()).append(",\t")
                         .append("MeanBorrowWaitTimeMillis: ").append(pool.getMeanBorrowWaitTimeMillis()).append(",\t")
                         .append("NumActive: ").append(pool.getNumActive()).append(",\t")
                         .append("NumIdle: ").append(pool.getNumIdle()).append(",\t")
-                        .append("NumWaiters: ").append(pool.getNumWaiters())
+                        .append("NumWaiters: ").append(pool.getNumWaiters()).append(",\t")
+                        .append(breaker(pool).getStatus()).append(",\t")
+                        .append(balancer.getStatus(pool)).append(",\t")
+                        .append(limiter.getStatus(pool))
+                        .append(ring == null ? "" : ",\t" + ring.getStatus(pool))
+                        .append(mode == Mode.REPLICATED ? ",\t" + repairs.getStatus(pool) : "")
+                        .append(",\t").append(healthChecker.getStatus(pool))
                         .append("\n");
             }
         }
@@ -99,61 +432,564 @@ public class JedisAPI  implements Observer {
             status.append("不可用REDIS连接池: \n");
             int i = 1;
             for (JedisPool pool : unavailablePools) {
-                status.append("\t").append(i++).append(". ").append(poolToServer.get(pool.toString()))
+                status.append("\t").append(i++).append(". ").append(server(pool))
                         .append("\t")
                         .append("getMaxBorrowWaitTimeMillis: ").append(pool.getMaxBorrowWaitTimeMillis()).append(",\t")
                         .append("MeanBorrowWaitTimeMillis: ").append(pool.getMeanBorrowWaitTimeMillis()).append(",\t")
                         .append("NumActive: ").append(pool.getNumActive()).append(",\t")
                         .append("NumIdle: ").append(pool.getNumIdle()).append(",\t")
-                        .append("NumWaiters: ").append(pool.getNumWaiters())
+                        .append("NumWaiters: ").append(pool.getNumWaiters()).append(",\t")
+                        .append(breaker(pool).getStatus())
+                        .append(ring == null ? "" : ",\t" + ring.getStatus(pool))
+                        .append(mode == Mode.REPLICATED ? ",\t" + repairs.getStatus(pool) : "")
+                        .append(",\t").append(healthChecker.getStatus(pool))
                         .append("\n");
             }
         }
-        if(!callSuccessHistories.isEmpty()){
-            status.append("REDIS连接获取成功次数统计: \n");
-            int i=1;
-            for(String server : callSuccessHistories.keySet()){
-                status.append("\t").append(i++).append(". ").append(server).append(" -->  ").append(callSuccessHistories.get(server).get()).append("\n");
-            }
-        }
-        if(!callFailureHistories.isEmpty()){
-            status.append("REDIS连接获取失败次数统计: \n");
+        if(!pipelines.isEmpty()){
+            status.append("REDIS自动管道: \n");
             int i=1;
-            for(String server : callFailureHistories.keySet()){
-                status.append("\t").append(i++).append(". ").append(server).append(" -->  ").append(callFailureHistories.get(server).get()).append("\n");
+            for(Map.Entry<JedisPool, AutoPipeline<LoadBalancer<JedisPool>>> entry : pipelines.entrySet()){
+                status.append("\t").append(i++).append(". ").append(server(entry.getKey()))
+                        .append(" -->  ").append(entry.getValue().getStatus()).append("\n");
             }
         }
+        appendServerStats(status, "REDIS连接获取成功次数统计", stats -> stats.successTimes.sum(), stats -> stats.successTimes.sum());
+        appendServerStats(status, "REDIS连接获取耗时统计", stats -> stats.borrowLatencies.snapshot().getCount(), stats -> stats.borrowLatencies.snapshot());
+        appendServerStats(status, "REDIS命令耗时统计", stats -> stats.commandLatencies.snapshot().getCount(), stats -> stats.commandLatencies.snapshot());
+        appendServerStats(status, "REDIS连接获取失败次数统计", stats -> stats.failureTimes.sum(), stats -> stats.failureTimes.sum());
+        appendServerStats(status, "REDIS命令执行次数统计", stats -> stats.calls.getSuccessTimes() + stats.calls.getFailureTimes(),
+                stats -> "累计成功 " + stats.calls.getSuccessTimes() + " 次, 失败 " + stats.calls.getFailureTimes() + " 次\t" + stats.calls.getStatus());
 
         return status.toString();
     }
 
+    /**
+     * 输出有记录的REDIS服务的一项统计
+     * @param status
+     * @param title
+     * @param count 记录数, 为0时不输出
+     * @param value
+     */
+    private void appendServerStats(StringBuilder status, String title, ToLongFunction<ServerStats> count, Function<ServerStats, Object> value){
+        int i=1;
+        for(ServerStats stats : serverStats.values()){
+            if(count.applyAsLong(stats) == 0){
+                continue;
+            }
+            if(i == 1){
+                status.append(title).append(": \n");
+            }
+            status.append("\t").append(i++).append(". ").append(stats.server).append(" -->  ").append(value.apply(stats)).append("\n");
+        }
+    }
+
     /**
      * 如果所有REDIS服务都不可用, 则返回null
      * 返回连接用完后必须要关闭, 调用close方法
      * @return
      */
     public Jedis getJedis() {
+        return getJedis(null);
+    }
+
+    /**
+     * 分片模式下返回KEY所属REDIS服务的连接, 这个服务不可用时返回哈希环上后继服务的连接
+     * 副本写入模式下返回一个没有待修复KEY的副本的连接, 在这个连接上的写入不会复制到其它副本
+     * 其它模式下与getJedis()相同
+     * 如果所有REDIS服务都不可用, 则返回null
+     * 返回连接用完后必须要关闭, 调用close方法
+     * 借用连接不一定经过REDIS服务, 连接上的命令也不经过这里, 借用成功不计入熔断器, 负载均衡策略及调用统计
+     * 熔断器HALF_OPEN状态下借出的连接占用一个试探许可, 连接归还时正常则试探成功, 出错则再次熔断
+     * @param key
+     * @return
+     */
+    public Jedis getJedis(String key) {
         if(availablePools.isEmpty()){
             validUnavailablePools();
         }
-        while (!availablePools.isEmpty()){
-            JedisPool pool = null;
+        List<JedisPool> candidates = readablePools();
+        List<JedisPool> excluded = null;
+        while (true){
+            JedisPool pool = nextPool(key, candidates, excluded);
+            if(pool == null){
+                break;
+            }
+            CircuitBreaker<JedisPool> breaker = breaker(pool);
+            long start = System.nanoTime();
             try{
-                int index = totalCallTimes.incrementAndGet() % availablePools.size();
-                pool = availablePools.get(index);
                 Jedis jedis = pool.getResource();
-                callSuccess(pool);
+                latency(pool, System.nanoTime() - start);
+                if(breaker.getState() == CircuitBreaker.State.HALF_OPEN){
+                    // 试探许可在连接归还时结束
+                    halfOpenBorrows.put(jedis, breaker);
+                }else {
+                    breaker.onCancel();
+                }
                 return jedis;
             }catch (Throwable ex){
-                poolUnavailable(pool);
-                callFailure(pool);
-                LOGGER.error("获取REDIS连接出错: ", ex);
+                if(exhausted(ex)){
+                    // 连接池的连接已经借完, 与REDIS服务是否可用无关, 不计入熔断
+                    breaker.onCancel();
+                    LOGGER.error("REDIS连接池的连接已经用完: {}", server(pool));
+                }else {
+                    // 建立连接失败
+                    breaker.onFailure();
+                    callFailure(pool);
+                    LOGGER.error("获取REDIS连接出错: ", ex);
+                }
+                // 本次获取不再尝试这个连接池
+                excluded = exclude(excluded, pool);
             }
         }
         LOGGER.error("没有可用的REDIS连接!");
         return null;
     }
 
+    /**
+     * 启用近端缓存时先查缓存
+     * @param key
+     * @return KEY不存在或者所有REDIS服务都不可用时返回null
+     */
+    public String get(String key){
+        return nearCache.get(key, k -> withJedis(k, true, jedis -> jedis.get(k)));
+    }
+
+    /**
+     * 启用近端缓存时先查缓存
+     * @param key
+     * @param field
+     * @return 字段不存在或者所有REDIS服务都不可用时返回null
+     */
+    public String hget(String key, String field){
+        return nearCache.hget(key, field, f -> withJedis(key, true, jedis -> jedis.hget(key, f)));
+    }
+
+    /**
+     * 写入后删除近端缓存, 并通知其它实例删除
+     * 副本写入模式下并行写入所有副本, 写入成功的副本数达不到要求时抛出JedisConnectionException
+     * @param key
+     * @param value
+     * @return 所有REDIS服务都不可用时返回null
+     */
+    public String set(String key, String value){
+        if(mode == Mode.REPLICATED){
+            return join(replicatedWrite(key, p -> p.set(key, value)));
+        }
+        try {
+            return withJedis(key, true, jedis -> jedis.set(key, value));
+        }finally {
+            nearCache.onWritten(key);
+        }
+    }
+
+    /**
+     * 写入后删除近端缓存, 并通知其它实例删除
+     * @param key
+     * @param field
+     * @param value
+     * @return 所有REDIS服务都不可用时返回null
+     */
+    public Long hset(String key, String field, String value){
+        if(mode == Mode.REPLICATED){
+            return join(replicatedWrite(key, p -> p.hset(key, field, value)));
+        }
+        try {
+            return withJedis(key, true, jedis -> jedis.hset(key, field, value));
+        }finally {
+            nearCache.onWritten(key);
+        }
+    }
+
+    /**
+     * 删除后删除近端缓存, 并通知其它实例删除
+     * @param key
+     * @return 所有REDIS服务都不可用时返回null
+     */
+    public Long del(String key){
+        if(mode == Mode.REPLICATED){
+            return join(replicatedWrite(key, p -> p.del(key)));
+        }
+        try {
+            // 重试时第一次删除可能已经生效, 返回的删除数不准确
+            return withJedis(key, false, jedis -> jedis.del(key));
+        }finally {
+            nearCache.onWritten(key);
+        }
+    }
+
+    /**
+     * 异步GET, 多个线程的命令合并为管道批量发送, 启用近端缓存时先查缓存
+     * @param key
+     * @return KEY不存在时结果为null, 所有REDIS服务都不可用时以JedisConnectionException失败, 排队命令数已达上限时以RejectedExecutionException失败
+     */
+    public CompletableFuture<String> getAsync(String key){
+        return nearCache.getAsync(key, k -> pipelined(k, p -> p.get(k)));
+    }
+
+    /**
+     * 异步HGET, 多个线程的命令合并为管道批量发送, 启用近端缓存时先查缓存
+     * @param key
+     * @param field
+     * @return
+     */
+    public CompletableFuture<String> hgetAsync(String key, String field){
+        return nearCache.hgetAsync(key, field, f -> pipelined(key, p -> p.hget(key, f)));
+    }
+
+    /**
+     * 异步SET, 多个线程的命令合并为管道批量发送, 写入完成后删除近端缓存, 并通知其它实例删除
+     * 副本写入模式下并行写入所有副本, 写入成功的副本数达不到要求时以JedisConnectionException失败
+     * @param key
+     * @param value
+     * @return
+     */
+    public CompletableFuture<String> setAsync(String key, String value){
+        return pipelinedWrite(key, p -> p.set(key, value));
+    }
+
+    public CompletableFuture<Long> hsetAsync(String key, String field, String value){
+        return pipelinedWrite(key, p -> p.hset(key, field, value));
+    }
+
+    public CompletableFuture<Long> delAsync(String key){
+        return pipelinedWrite(key, p -> p.del(key));
+    }
+
+    private <T> CompletableFuture<T> pipelinedWrite(String key, Function<Pipeline, Response<T>> command){
+        if(mode == Mode.REPLICATED){
+            return replicatedWrite(key, command);
+        }
+        // 写入完成后再删除近端缓存, 否则写入完成前的读取可能把旧值重新放入缓存
+        return pipelined(key, command).whenComplete((r, e) -> nearCache.onWritten(key));
+    }
+
+    /**
+     * 通过每个副本的自动管道并行写入所有副本, 写入成功的副本数达到法定数时完成
+     * 不可用或者写入失败的副本记录下这个KEY, 恢复可用后修复
+     * 所有副本的写入都结束后才结束写入记录, 在此之前不修复这个KEY
+     * @param key
+     * @param command
+     * @param <T>
+     * @return 第一个写入成功的副本的结果
+     */
+    private <T> CompletableFuture<T> replicatedWrite(String key, Function<Pipeline, Response<T>> command){
+        List<JedisPool> replicas = configuredPools;
+        if(replicas.isEmpty()){
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new JedisConnectionException("没有可用的REDIS连接!"));
+            return future;
+        }
+        Quorum<T> quorum = new Quorum<>(writeQuorum, replicas.size());
+        List<CompletableFuture<?>> writes = new ArrayList<>(replicas.size());
+        repairs.beginWrite(key);
+        for(JedisPool pool : replicas){
+            if(!availablePools.contains(pool) || !breaker(pool).tryAcquire()){
+                repairs.missed(pool, key);
+                quorum.onFailure(new JedisConnectionException("REDIS副本不可用: " + server(pool)));
+                continue;
+            }
+            totalCallTimes.increment();
+            writes.add(submit(pool, key, command).whenComplete((r, e) -> {
+                if(e == null){
+                    quorum.onSuccess(r);
+                }else{
+                    repairs.missed(pool, key);
+                    quorum.onFailure(e);
+                }
+            }));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]))
+                .whenComplete((r, e) -> repairs.endWrite(key));
+        return quorum.future.whenComplete((r, e) -> nearCache.onWritten(key));
+    }
+
+    /**
+     * 副本写入的法定数
+     * @param <T>
+     */
+    private static class Quorum<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final int required;
+        private final int total;
+        private final AtomicInteger successes = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+        private Quorum(int required, int total) {
+            this.required = required;
+            this.total = total;
+        }
+
+        private void onSuccess(T result){
+            if(successes.incrementAndGet() == required){
+                future.complete(result);
+            }
+        }
+
+        private void onFailure(Throwable e){
+            firstError.compareAndSet(null, e);
+            // 剩下的副本全部成功也达不到法定数
+            if(total - failures.incrementAndGet() == required - 1){
+                JedisConnectionException error = new JedisConnectionException("写入成功的REDIS副本数达不到 " + required + " 个", firstError.get());
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+    /**
+     * 等待异步结果, 把异步失败的原因作为异常抛出
+     * @param future
+     * @param <T>
+     * @return
+     */
+    private static <T> T join(CompletableFuture<T> future){
+        try {
+            return future.join();
+        }catch (CompletionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 分片模式下选择KEY所属的连接池, 否则由负载均衡策略选择连接池, 命令进入这个连接池的自动管道
+     * @param key
+     * @param command
+     * @param <T>
+     * @return
+     */
+    private <T> CompletableFuture<T> pipelined(String key, Function<Pipeline, Response<T>> command){
+        checkUnavailablePools();
+        JedisPool pool = nextPool(key, readablePools(), null);
+        if(pool == null){
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new JedisConnectionException("没有可用的REDIS连接!"));
+            return future;
+        }
+        return submit(pool, key, command);
+    }
+
+    /**
+     * 命令进入连接池的自动管道, 调用前已经获得熔断器许可
+     * 命令结束时在提交时的负载均衡策略上结束, 配置重新加载更换负载均衡策略不影响在途命令的统计
+     * @param pool
+     * @param key 同一个KEY的命令按提交顺序发送
+     * @param command
+     * @param <T>
+     * @return
+     */
+    private <T> CompletableFuture<T> submit(JedisPool pool, String key, Function<Pipeline, Response<T>> command){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if(!limiter.tryAcquire(pool)){
+            // 异步命令不转到其它连接池, 直接拒绝
+            breaker(pool).onCancel();
+            future.completeExceptionally(new RejectedExecutionException("REDIS服务并发已达上限: " + server(pool)));
+            return future;
+        }
+        LoadBalancer<JedisPool> balancer = this.balancer;
+        balancer.onStart(pool);
+        try {
+            return pipeline(pool).submit(key, balancer, command);
+        }catch (RejectedExecutionException e){
+            // 本地排队已满, 与REDIS服务是否可用无关
+            balancer.onComplete(pool, 0, true);
+            limiter.onCancel(pool);
+            breaker(pool).onCancel();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * 连接池的自动管道, 不存在时创建
+     * 创建自动管道会启动线程, 在映射之外创建, 并发创建时关闭多余的
+     * @param pool
+     * @return
+     * @throws RejectedExecutionException 连接池已经移除
+     */
+    private AutoPipeline<LoadBalancer<JedisPool>> pipeline(JedisPool pool){
+        AutoPipeline<LoadBalancer<JedisPool>> pipeline = pipelines.get(pool);
+        if(pipeline != null){
+            return pipeline;
+        }
+        if(!poolStats.containsKey(pool)){
+            throw new RejectedExecutionException("REDIS连接池已经移除");
+        }
+        AutoPipeline<LoadBalancer<JedisPool>> created = new AutoPipeline<>(server(pool), pool,
+                PIPELINE_CONNECTIONS.get(),
+                PIPELINE_MAX_BATCH.get(),
+                PIPELINE_LINGER_MICROS.get(),
+                PIPELINE_QUEUE_CAPACITY.get(),
+                (balancers, costNanos, error) -> {
+                    // 一批命令是一次往返, 熔断器只记录一次结果, 其余命令的许可归还
+                    CircuitBreaker<JedisPool> breaker = breaker(pool);
+                    if(error == null){
+                        breaker.onSuccess();
+                    }else{
+                        breaker.onFailure();
+                    }
+                    for(int i=0; i<balancers.size(); i++){
+                        balancers.get(i).onComplete(pool, costNanos, error == null);
+                        limiter.onComplete(pool, costNanos, error == null);
+                        if(i > 0){
+                            breaker.onCancel();
+                        }
+                        if(error == null){
+                            callSuccess(pool);
+                        }else{
+                            callFailure(pool);
+                        }
+                    }
+                });
+        pipeline = pipelines.putIfAbsent(pool, created);
+        if(pipeline != null){
+            created.close();
+            return pipeline;
+        }
+        if(!poolStats.containsKey(pool)){
+            // 创建期间连接池被移除, 关闭时可能已经错过了这个自动管道
+            pipelines.remove(pool, created);
+            created.close();
+            throw new RejectedExecutionException("REDIS连接池已经移除");
+        }
+        return created;
+    }
+
+    /**
+     * 借用连接执行操作, 执行完成后归还连接, 调用者不需要关闭连接
+     * 连接出错(JedisConnectionException)时换一个REDIS服务重试, 命令最多发送redis.execute.max.attempts次
+     * 获取连接失败时命令还没有发送, 总是换一个REDIS服务重试
+     * REDIS服务返回的错误(如类型不匹配)不重试, 直接抛出
+     * 连接只能在操作内使用, 不能保存到操作之外
+     * @param operation 必须是幂等的, 重复执行结果相同
+     * @param <T>
+     * @return 操作的结果
+     * @throws JedisConnectionException 所有REDIS服务都不可用, 或者重试之后连接仍然出错
+     */
+    public <T> T execute(Function<Jedis, T> operation){
+        return execute(null, operation, true);
+    }
+
+    /**
+     * 同execute(operation)
+     * @param operation
+     * @param idempotent 为false时命令发送之后连接出错不再重试, 避免重复执行
+     * @param <T>
+     * @return
+     */
+    public <T> T execute(Function<Jedis, T> operation, boolean idempotent){
+        return execute(null, operation, idempotent);
+    }
+
+    /**
+     * 同execute(operation, idempotent), 分片模式下在KEY所属的REDIS服务上执行, 重试时使用哈希环上的后继服务
+     * @param key
+     * @param operation
+     * @param idempotent
+     * @param <T>
+     * @return
+     */
+    public <T> T execute(String key, Function<Jedis, T> operation, boolean idempotent){
+        return execute(key, operation, idempotent, false);
+    }
+
+    private <T> T withJedis(String key, boolean idempotent, Function<Jedis, T> operation){
+        return execute(key, operation, idempotent, true);
+    }
+
+    /**
+     * @param nullIfUnavailable 所有REDIS服务都不可用时返回null而不是抛出异常
+     */
+    private <T> T execute(String key, Function<Jedis, T> operation, boolean idempotent, boolean nullIfUnavailable){
+        if(availablePools.isEmpty()){
+            validUnavailablePools();
+        }
+        List<JedisPool> candidates = readablePools();
+        List<JedisPool> excluded = null;
+        int attempts = 0;
+        JedisConnectionException error = null;
+        while (true){
+            LoadBalancer<JedisPool> balancer = this.balancer;
+            JedisPool pool = nextPool(key, candidates, excluded);
+            if(pool == null){
+                break;
+            }
+            CircuitBreaker<JedisPool> breaker = breaker(pool);
+            if(!limiter.tryAcquire(pool)){
+                breaker.onCancel();
+                LOGGER.error("REDIS服务并发已达上限: {}", server(pool));
+                error = new JedisConnectionException("REDIS服务并发已达上限: " + server(pool));
+                if(key != null && ring != null){
+                    // 分片模式下其它REDIS服务没有这个KEY, 直接拒绝
+                    break;
+                }
+                // 转到其它连接池
+                excluded = exclude(excluded, pool);
+                continue;
+            }
+            balancer.onStart(pool);
+            long start = System.nanoTime();
+            Jedis jedis = null;
+            try{
+                jedis = pool.getResource();
+                latency(pool, System.nanoTime() - start);
+                attempts++;
+                T result = operation.apply(jedis);
+                long cost = System.nanoTime() - start;
+                balancer.onComplete(pool, cost, true);
+                limiter.onComplete(pool, cost, true);
+                breaker.onSuccess();
+                callSuccess(pool);
+                commandLatency(pool, cost);
+                return result;
+            }catch (JedisConnectionException e){
+                error = e;
+                boolean sent = jedis != null;
+                if(!sent && exhausted(e)){
+                    // 连接池的连接已经借完, 与REDIS服务是否可用无关, 不计入熔断, 转到其它连接池
+                    balancer.onComplete(pool, System.nanoTime() - start, true);
+                    limiter.onCancel(pool);
+                    breaker.onCancel();
+                    LOGGER.error("REDIS连接池的连接已经用完: {}", server(pool));
+                }else {
+                    long cost = System.nanoTime() - start;
+                    balancer.onComplete(pool, cost, false);
+                    limiter.onComplete(pool, cost, false);
+                    breaker.onFailure();
+                    callFailure(pool);
+                    LOGGER.error("REDIS连接出错: " + server(pool), e);
+                }
+                if(sent && (!idempotent || attempts >= executeMaxAttempts)){
+                    throw e;
+                }
+                // 本次执行不再尝试这个连接池
+                excluded = exclude(excluded, pool);
+            }catch (RuntimeException e){
+                // REDIS服务返回了错误或者操作本身出错, REDIS服务是可用的
+                long cost = System.nanoTime() - start;
+                balancer.onComplete(pool, cost, true);
+                limiter.onComplete(pool, cost, true);
+                breaker.onSuccess();
+                callSuccess(pool);
+                commandLatency(pool, cost);
+                throw e;
+            }finally {
+                // 连接出错时连接已经标记为损坏, close会把它从连接池中销毁
+                if(jedis != null){
+                    jedis.close();
+                }
+            }
+        }
+        LOGGER.error("没有可用的REDIS连接!");
+        if(nullIfUnavailable){
+            return null;
+        }
+        throw new JedisConnectionException("没有可用的REDIS连接!", error);
+    }
+
     /**
      * 当getInstance方法第一次被调用的时候，它第一次读取
      * JedisAPIHolder.INSTANCE，导致JedisAPIHolder类得到初始化；而这个类在装载并被初始化的时候，会初始化它的静
@@ -174,65 +1010,490 @@ public class JedisAPI  implements Observer {
         private static final JedisAPI INSTANCE = new JedisAPI();
     }
 
+    /**
+     * 分片模式下选择KEY在哈希环上第一个可用的连接池, 否则由负载均衡策略选择连接池
+     * 半开状态的连接池试探名额已用完时选择其它连接池, 没有可用连接池时返回null
+     * 候选列表是快照, 不复制, 不选择的连接池记录在排除列表中, 只有需要排除时才分配
+     * @param key 为null时由负载均衡策略选择
+     * @param candidates
+     * @param excluded 本次调用已经失败的连接池, 为null时不排除
+     * @return
+     */
+    private JedisPool nextPool(String key, List<JedisPool> candidates, List<JedisPool> excluded){
+        ConsistentHashRing<JedisPool> ring = this.ring;
+        while (true) {
+            List<JedisPool> skipped = excluded;
+            // 不可用连接池的虚拟节点被跳过, 只有它负责的KEY转移到后继连接池
+            JedisPool pool = key == null || ring == null
+                    ? balancer.select(candidates, skipped == null ? null : skipped::contains)
+                    : ring.select(key, skipped == null ? candidates::contains : p -> candidates.contains(p) && !skipped.contains(p));
+            if (pool == null) {
+                return null;
+            }
+            if (breaker(pool).tryAcquire()) {
+                totalCallTimes.increment();
+                return pool;
+            }
+            excluded = excluded == null ? new ArrayList<>(2) : new ArrayList<>(excluded);
+            excluded.add(pool);
+        }
+    }
+
+    /**
+     * @param excluded 为null时分配
+     * @param pool
+     * @return 加入了连接池的排除列表
+     */
+    private static List<JedisPool> exclude(List<JedisPool> excluded, JedisPool pool){
+        if(excluded == null){
+            excluded = new ArrayList<>(2);
+        }
+        excluded.add(pool);
+        return excluded;
+    }
+
+    /**
+     * 可以处理读取的连接池, 副本写入模式下避开有待修复KEY的副本, 所有副本都有待修复KEY时不再避开
+     * @return
+     */
+    private List<JedisPool> readablePools(){
+        if(mode != Mode.REPLICATED || !repairs.hasPending()){
+            return availablePools;
+        }
+        List<JedisPool> pools = new ArrayList<>();
+        for(JedisPool pool : availablePools){
+            if(!repairs.isPending(pool)){
+                pools.add(pool);
+            }
+        }
+        return pools.isEmpty() ? availablePools : pools;
+    }
+
+    /**
+     * 从一个没有待修复KEY的可用副本复制KEY到恢复可用的副本, 在后台线程执行
+     * 用DUMP及RESTORE复制, 支持所有数据类型, 并保留剩余存活时间, KEY在源副本上不存在时删除
+     * @param pool
+     */
+    private void repair(JedisPool pool){
+        if(mode != Mode.REPLICATED || !repairs.isPending(pool)){
+            return;
+        }
+        JedisPool source = null;
+        for(JedisPool candidate : availablePools){
+            if(candidate != pool && !repairs.isPending(candidate)){
+                source = candidate;
+                break;
+            }
+        }
+        if(source == null){
+            LOGGER.error("没有可以作为修复来源的REDIS副本: {}", server(pool));
+            return;
+        }
+        try(Jedis from = source.getResource(); Jedis to = pool.getResource()){
+            repairs.repair(pool, key -> {
+                long ttl = from.pttl(key);
+                byte[] value = from.dump(key);
+                to.del(key);
+                if(value != null){
+                    to.restore(key, ttl > 0 ? (int) Math.min(ttl, Integer.MAX_VALUE) : 0, value);
+                }
+            });
+        }catch (Throwable e){
+            LOGGER.error("修复REDIS副本失败: " + server(pool), e);
+        }
+    }
+
+    /**
+     * @param pool
+     * @return 连接池的熔断器, 已经移除的连接池返回一个不保存的熔断器, 在途调用结束时不会重新创建它的熔断器
+     */
+    private CircuitBreaker<JedisPool> breaker(JedisPool pool){
+        CircuitBreaker<JedisPool> breaker = breakers.get(pool);
+        if(breaker != null){
+            return breaker;
+        }
+        if(!poolStats.containsKey(pool)){
+            // 状态变化时不是当前的熔断器, 不影响可用及不可用连接池列表
+            return new CircuitBreaker<>(pool, server(pool), breakerSettings, calls(pool), this::onBreakerStateChange);
+        }
+        // 创建熔断器的lambda引用了this, 每次求值都会分配对象, 只在第一次调用时使用
+        breaker = breakers.computeIfAbsent(pool, p -> new CircuitBreaker<>(p, server(p),
+                breakerSettings, calls(p), this::onBreakerStateChange));
+        if(!poolStats.containsKey(pool)){
+            // 创建期间连接池被移除
+            breakers.remove(pool, breaker);
+        }
+        return breaker;
+    }
+
+    /**
+     * 熔断器驱动可用及不可用连接池列表
+     * @param breaker
+     * @param from
+     * @param to
+     */
+    private void onBreakerStateChange(CircuitBreaker<JedisPool> breaker, CircuitBreaker.State from, CircuitBreaker.State to){
+        JedisPool pool = breaker.getBackend();
+        if(breakers.get(pool) != breaker){
+            // 配置重新加载前的熔断器
+            return;
+        }
+        switch (to){
+            case OPEN:
+                poolUnavailable(pool);
+                LOGGER.error("REDIS服务熔断, {} 毫秒后放行试探调用: {}", breaker.getOpenMillis(), breaker.getName());
+                timerExecutorService.schedule(()->breaker.halfOpen(), breaker.getOpenMillis(), TimeUnit.MILLISECONDS);
+                break;
+            case HALF_OPEN:
+                // 健康检查认为不可用的服务由健康检查恢复
+                if(healthChecker.isHealthy(pool)) {
+                    LOGGER.info("REDIS服务熔断时长已过, 放行试探调用: {}", breaker.getName());
+                    poolAvailable(pool);
+                }
+                break;
+            case CLOSED:
+                if(healthChecker.isHealthy(pool)) {
+                    LOGGER.info("REDIS服务恢复可用: {}", breaker.getName());
+                    poolAvailable(pool);
+                }
+                break;
+        }
+    }
+
+    /**
+     * 每个REDIS服务获取连接的耗时分布, 自服务启动以来的累计值
+     * 启用testOnBorrow时耗时包含一次到REDIS服务的往返, 否则只是从连接池借出连接的耗时
+     * @return REDIS服务及其耗时分布的快照
+     */
+    public Map<String, LatencyHistogram.Snapshot> getLatencySnapshots() {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new HashMap<>();
+        serverStats.forEach((server, stats) -> snapshots.put(server, stats.borrowLatencies.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * 每个REDIS服务通过execute执行命令的耗时分布, 包括获取连接, 自服务启动以来的累计值
+     * @return REDIS服务及其耗时分布的快照
+     */
+    public Map<String, LatencyHistogram.Snapshot> getCommandLatencySnapshots() {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new HashMap<>();
+        serverStats.forEach((server, stats) -> snapshots.put(server, stats.commandLatencies.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * @param pool
+     * @return 连接池对应的 ip:port, 已经移除的连接池返回null
+     */
+    private String server(JedisPool pool){
+        ServerStats stats = poolStats.get(pool);
+        return stats == null ? null : stats.server;
+    }
+
+    private void latency(JedisPool pool, long costNanos){
+        ServerStats stats = poolStats.get(pool);
+        if(stats != null){
+            stats.borrowLatencies.record(costNanos);
+        }
+    }
+
+    private void commandLatency(JedisPool pool, long costNanos){
+        ServerStats stats = poolStats.get(pool);
+        if(stats != null){
+            stats.commandLatencies.record(costNanos);
+        }
+    }
+
+    /**
+     * @param pool
+     * @return REDIS服务的调用计数器, 已经移除的连接池返回一个新的计数器
+     */
+    private RollingCounter calls(JedisPool pool){
+        ServerStats stats = poolStats.get(pool);
+        return stats == null ? new RollingCounter() : stats.calls;
+    }
+
     private void callSuccess(JedisPool pool){
-        callOnce(callSuccessHistories, pool);
+        ServerStats stats = poolStats.get(pool);
+        if(stats != null){
+            stats.successTimes.increment();
+        }
     }
 
     private void callFailure(JedisPool pool){
-        callOnce(callFailureHistories, pool);
+        ServerStats stats = poolStats.get(pool);
+        if(stats != null){
+            stats.failureTimes.increment();
+        }
     }
 
-    private void callOnce(Map<String, AtomicInteger> histories, JedisPool pool){
-        String server = poolToServer.get(pool.toString());
-        if(server == null){
-            return;
+    /**
+     * 一个REDIS服务的调用统计, 计数器使用LongAdder, 多线程同时更新时不会竞争同一个变量
+     */
+    private static class ServerStats {
+        private final String server;
+        private final LongAdder successTimes = new LongAdder();
+        private final LongAdder failureTimes = new LongAdder();
+        // 获取连接的耗时分布
+        private final LatencyHistogram borrowLatencies = new LatencyHistogram();
+        // 通过execute执行命令的耗时分布, 包括获取连接
+        private final LatencyHistogram commandLatencies = new LatencyHistogram();
+        // 命令执行成功及失败次数, 由熔断器记录, 按滚动时间窗口统计
+        private final RollingCounter calls = new RollingCounter();
+
+        private ServerStats(String server) {
+            this.server = server;
         }
-        histories.putIfAbsent(server, new AtomicInteger());
-        histories.get(server).incrementAndGet();
     }
 
     private void validUnavailablePools(){
         for(JedisPool pool : unavailablePools){
             if(isAvailable(pool)){
+                breaker(pool).close();
                 poolAvailable(pool);
             }
         }
-        if(ConfTools.getBoolean("status.log.enabled", true)){
+        if(STATUS_LOG_ENABLED.get()){
             LOGGER.info("\n{}", getStatus());
         }
     }
 
+    /**
+     * 继续上次没有完成的副本修复, 修复最多要复制redis.replication.repair.max.keys个KEY, 只在定时任务线程执行
+     */
+    private void repairPending(){
+        for(JedisPool pool : availablePools){
+            repair(pool);
+        }
+    }
+
+    /**
+     * 不阻塞调用线程, 由定时任务线程检查不可用服务是否已经恢复
+     */
+    private void checkUnavailablePools(){
+        if(availablePools.isEmpty()){
+            try {
+                scheduledExecutorService.execute(()->validUnavailablePools());
+            }catch (RejectedExecutionException e){
+                // 已经关闭
+            }
+        }
+    }
+
+    /**
+     * 用健康检查的连接PING一次, 不读写业务数据
+     * @param pool
+     * @return
+     */
     private boolean isAvailable(JedisPool pool){
-        try{
-            Jedis jedis = pool.getResource();
-            String value = String.valueOf(System.currentTimeMillis());
-            jedis.set(DETECT_KEY, value);
-            String actualValue = jedis.get(DETECT_KEY);
-            jedis.close();
-            if(value.equals(actualValue)) {
-                return true;
+        return healthChecker.check(pool) && healthChecker.isHealthy(pool);
+    }
+
+    /**
+     * 并行探测所有服务, 每个探测受探测连接的超时时间限制, 一个服务没有响应不会推迟其它服务的探测
+     * 上一次探测还没有结束的服务本轮跳过
+     * 探测耗时只记入健康检查的统计, 不提供给负载均衡策略, 负载均衡策略只使用真实命令的耗时
+     */
+    private void checkHealth(){
+        for(JedisPool pool : configuredPools){
+            if(!probingPools.add(pool)){
+                continue;
+            }
+            try {
+                probeExecutorService.execute(() -> {
+                    try {
+                        healthChecker.check(pool);
+                    }catch (Throwable e){
+                        LOGGER.error("REDIS健康检查出错: " + server(pool), e);
+                    }finally {
+                        probingPools.remove(pool);
+                    }
+                });
+            }catch (RejectedExecutionException e){
+                // 已经关闭
+                probingPools.remove(pool);
+                return;
+            }
+        }
+    }
+
+    private void ping(JedisPool pool){
+        ProbeConnection connection = probeConnections.get(pool);
+        if(connection == null){
+            throw new IllegalStateException("连接池已经移除: " + server(pool));
+        }
+        connection.ping();
+    }
+
+    /**
+     * 健康检查驱动可用及不可用连接池列表
+     * @param pool
+     * @param healthy
+     */
+    private void onHealthChange(JedisPool pool, boolean healthy){
+        if(!configuredPools.contains(pool)){
+            // 配置重新加载前的连接池
+            return;
+        }
+        String server = server(pool);
+        if(healthy){
+            LOGGER.info("REDIS服务健康检查恢复正常: {}", server);
+            breaker(pool).close();
+            poolAvailable(pool);
+        }else{
+            LOGGER.error("REDIS服务健康检查连续失败, 标记为不可用: {}", server);
+            poolUnavailable(pool);
+        }
+    }
+
+    /**
+     * 健康检查使用的连接, 出错时关闭, 下次探测时重新连接
+     */
+    private static class ProbeConnection {
+        private final String ip;
+        private final int port;
+        private final String password;
+        private int timeoutMillis;
+        private Jedis jedis;
+
+        private ProbeConnection(String ip, int port, String password, int timeoutMillis) {
+            this.ip = ip;
+            this.port = port;
+            this.password = password;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        private synchronized void ping(){
+            try {
+                if(jedis == null){
+                    jedis = new Jedis(ip, port, timeoutMillis);
+                    if(!"".equals(password)) {
+                        jedis.auth(password);
+                    }
+                }
+                String reply = jedis.ping();
+                if(!"PONG".equals(reply)){
+                    throw new JedisConnectionException("PING返回: " + reply);
+                }
+            }catch (RuntimeException e){
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * 超时时间变化时关闭连接, 下次探测时使用新的超时时间重新连接
+         * @param timeoutMillis
+         */
+        private synchronized void configure(int timeoutMillis){
+            if(this.timeoutMillis != timeoutMillis){
+                this.timeoutMillis = timeoutMillis;
+                close();
+            }
+        }
+
+        private synchronized void close(){
+            if(jedis != null){
+                try {
+                    jedis.close();
+                }catch (Throwable e){
+                    // 连接已经断开
+                }
+                jedis = null;
             }
-        }catch (Throwable e){
-            //
         }
-        return false;
     }
 
     private void poolUnavailable(JedisPool pool){
-        availablePools.remove(pool);
-        if(!unavailablePools.contains(pool)) {
-            unavailablePools.add(pool);
+        synchronized (poolsLock) {
+            availablePools = without(availablePools, pool);
+            unavailablePools = with(unavailablePools, pool);
         }
+        onAvailabilityChange();
     }
 
     private void poolAvailable(JedisPool pool){
-        if(!availablePools.contains(pool)) {
-            availablePools.add(pool);
+        synchronized (poolsLock) {
+            availablePools = with(availablePools, pool);
+            unavailablePools = without(unavailablePools, pool);
+        }
+        onAvailabilityChange();
+        if(mode == Mode.REPLICATED && repairs.isPending(pool)){
+            try {
+                scheduledExecutorService.execute(() -> repair(pool));
+            }catch (RejectedExecutionException e){
+                // 已经关闭
+            }
+        }
+    }
+
+    private static List<JedisPool> with(List<JedisPool> pools, JedisPool pool){
+        if(pools.contains(pool)){
+            return pools;
+        }
+        List<JedisPool> result = new ArrayList<>(pools);
+        result.add(pool);
+        return LoadBalancers.snapshot(result);
+    }
+
+    private static List<JedisPool> without(List<JedisPool> pools, JedisPool pool){
+        if(!pools.contains(pool)){
+            return pools;
+        }
+        List<JedisPool> result = new ArrayList<>(pools);
+        result.remove(pool);
+        return LoadBalancers.snapshot(result);
+    }
+
+    /**
+     * 失效通知使用的连接池变化时重新订阅, 保证订阅和发布在同一个REDIS服务上
+     */
+    private synchronized void onAvailabilityChange(){
+        JedisPool pool = channelPool();
+        if(pool != channelPool){
+            channelPool = pool;
+            nearCache.resubscribe();
+        }
+    }
+
+    /**
+     * 近端缓存失效通知使用按配置顺序第一个可用的连接池
+     * 分片模式下每个REDIS服务只保存部分KEY, 所有实例必须在同一个REDIS服务上发布和订阅失效通知
+     * @return 没有可用连接池时返回null
+     */
+    private JedisPool channelPool(){
+        for(JedisPool pool : configuredPools){
+            if(availablePools.contains(pool)){
+                return pool;
+            }
         }
-        unavailablePools.remove(pool);
+        return null;
     }
 
-    private JedisPool initPool(String ip, int port, String password){
+    private Jedis getChannelJedis(){
+        JedisPool pool = channelPool();
+        return pool == null ? null : pool.getResource();
+    }
+
+    /**
+     * 在失效通知连接池的自动管道中发布, 不等待结果
+     * @param channel
+     * @param key
+     */
+    private void publishInvalidation(String channel, String key){
+        JedisPool pool = channelPool();
+        if(pool == null || !breaker(pool).tryAcquire()){
+            LOGGER.error("没有可用的REDIS连接, 近端缓存失效通知未发布: {}", key);
+            return;
+        }
+        submit(pool, key, p -> p.publish(channel, key)).whenComplete((r, e) -> {
+            if(e != null){
+                LOGGER.error("发布近端缓存失效通知失败: " + key, e);
+            }
+        });
+    }
+
+    private JedisPoolConfig poolConfig(){
         JedisPoolConfig config = new JedisPoolConfig();
         // 连接耗尽时是否阻塞, false报异常, ture阻塞直到超时, 默认true
         config.setBlockWhenExhausted(ConfTools.getBoolean("redis.pool.blockWhenExhausted", false));
@@ -268,24 +1529,26 @@ public class JedisAPI  implements Observer {
         // 时直接逐出,不再根据MinEvictableIdleTimeMillis判断 (默认逐出策略)
         config.setSoftMinEvictableIdleTimeMillis(ConfTools.getInt("redis.pool.softMinEvictableIdleTimeMillis", 1800000));
 
-        // 在获取连接的时候检查有效性
-        config.setTestOnBorrow(ConfTools.getBoolean("redis.pool.testOnBorrow", true));
+        // 在获取连接的时候检查有效性, 每次借用多一次往返, 由后台健康检查及空闲检查代替
+        config.setTestOnBorrow(ConfTools.getBoolean("redis.pool.testOnBorrow", false));
 
-        // 在空闲时检查有效性
+        // 在空闲时检查有效性, 由逐出线程在后台执行, 逐出扫描的时间间隔为负数时不检查
         config.setTestWhileIdle(ConfTools.getBoolean("redis.pool.testWhileIdle", true));
 
         // 逐出扫描的时间间隔(毫秒) 如果为负数, 则不运行逐出线程
-        config.setTimeBetweenEvictionRunsMillis(ConfTools.getInt("redis.pool.timeBetweenEvictionRunsMillis", -1));
+        config.setTimeBetweenEvictionRunsMillis(ConfTools.getInt("redis.pool.timeBetweenEvictionRunsMillis", 30000));
+        return config;
+    }
+
+    private JedisPool initPool(String ip, int port, String password, JedisPoolConfig config, int readTimeoutMillis){
         try {
             /**
              * 如果你遇到 java.net.SocketTimeoutException: Read timed out
              * exception的异常信息 请尝试在构造JedisPool的时候设置自己的超时值.
              * JedisPool默认的超时时间是2秒(单位毫秒)
              */
-            JedisPool pool = new JedisPool(config, ip, port, ConfTools.getInt("redis.pool.readTimeoutMillis", 2000), password);
-            if(!availablePools.contains(pool)) {
-                availablePools.add(pool);
-            }
+            ReconfigurableJedisPool pool = new ReconfigurableJedisPool(config, ip, port, readTimeoutMillis, password);
+            pool.setReturnListener(this::onReturn);
             return pool;
         } catch (Exception e) {
             LOGGER.error("构造REDIS连接池失败", e);
@@ -293,6 +1556,23 @@ public class JedisAPI  implements Observer {
         return null;
     }
 
+    /**
+     * 连接归还时结束getJedis在HALF_OPEN状态下占用的试探许可
+     * @param jedis
+     * @param broken
+     */
+    private void onReturn(Jedis jedis, boolean broken){
+        CircuitBreaker<JedisPool> breaker = halfOpenBorrows.remove(jedis);
+        if(breaker == null){
+            return;
+        }
+        if(broken){
+            breaker.onFailure();
+        }else {
+            breaker.onSuccess();
+        }
+    }
+
     public static void main(String[] args) throws Exception{
         while(true){
             Jedis jedis = null;
@@ -1,10 +1,62 @@
 package org.apdplat.service.api;
 
+import org.apdplat.service.metrics.LatencyHistogram;
+
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Created by ysc on 7/5/16.
  */
 public interface SearchAPI {
     String search(String keyword, int topN);
+
+    /**
+     * 非阻塞搜索, 调用线程不等待HTTP响应
+     * 失败转移逻辑与search相同, 所有URL都不可用时返回的future以"[]"完成
+     * @param keyword
+     * @param topN
+     * @return
+     */
+    CompletableFuture<String> searchAsync(String keyword, int topN);
+
+    /**
+     * 并行搜索多个关键词, 总耗时约等于最慢的一个而不是所有关键词耗时之和
+     * @param keywords
+     * @param topN
+     * @param deadlineMillis 最长等待时间, 到期时返回已经完成的部分结果
+     * @return 关键词及其搜索结果
+     */
+    Map<String, String> searchBatch(Collection<String> keywords, int topN, long deadlineMillis);
+
+    /**
+     * 把搜索服务返回的原始字节直接写入输出流, 比如Servlet的响应输出流, 不构造中间字符串
+     * @param keyword
+     * @param topN
+     * @param out
+     * @return 写入的字节数
+     */
+    long search(String keyword, int topN, OutputStream out);
+
+    /**
+     * 非阻塞搜索, 搜索服务返回的原始字节直接写入target, 在HTTP客户端的写出线程上写入, 不占用IO线程
+     * 所有URL都不可用时写入"[]"
+     * @param keyword
+     * @param topN
+     * @param target
+     * @return 写入的字节数
+     */
+    CompletableFuture<Long> searchAsync(String keyword, int topN, WritableByteChannel target);
+
+    /**
+     * 每个URL成功调用的耗时分布, 自服务启动以来的累计值
+     * @return URL及其耗时分布的快照
+     */
+    Map<String, LatencyHistogram.Snapshot> getLatencySnapshots();
+
     String getStatus();
     void close();
 }
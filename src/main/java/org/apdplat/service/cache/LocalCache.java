@@ -0,0 +1,430 @@
+package org.apdplat.service.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * 进程内缓存
+ * 容量可以用条目数及权重(比如字节数)限制, 条目写入后超过存活时间即失效
+ * 淘汰策略为分段LRU(SLRU): 新条目进入试用区, 再次命中才晋升到保护区, 一次性扫描的大量冷数据只能挤占试用区, 不会冲掉热点数据
+ * 同一个KEY的并发未命中只触发一次加载, 其余调用共享加载结果, 所有调用方都取消时加载也被取消
+ * 内部按KEY的哈希分为多个段, 每个段独立加锁, 降低锁竞争
+ */
+public class LocalCache<K, V> {
+    private static final int SEGMENTS = 16;
+    // 保护区占每个段容量的比例
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final String name;
+    private final ToLongBiFunction<K, V> weigher;
+    @SuppressWarnings("unchecked")
+    private final Segment[] segments = (Segment[]) new LocalCache<?, ?>.Segment[SEGMENTS];
+    private final Map<K, Loading<V>> loadings = new ConcurrentHashMap<>();
+
+    private final LongAdder hitTimes = new LongAdder();
+    private final LongAdder missTimes = new LongAdder();
+    private final LongAdder evictionTimes = new LongAdder();
+    private final LongAdder expirationTimes = new LongAdder();
+    private final LongAdder coalescedTimes = new LongAdder();
+
+    private volatile boolean enabled;
+    private volatile long maxEntries;
+    private volatile long maxWeight;
+    private volatile long ttlMillis;
+
+    /**
+     * @param name 缓存名称, 用于状态输出
+     * @param weigher 计算条目权重, 用于按权重限制容量
+     */
+    public LocalCache(String name, ToLongBiFunction<K, V> weigher){
+        this.name = name;
+        this.weigher = weigher;
+        for(int i=0; i<SEGMENTS; i++){
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * 调整容量及存活时间, 容量缩小时立即淘汰多出的条目
+     * @param maxEntries 最大条目数, 小于等于0表示不限制
+     * @param maxWeight 最大权重, 小于等于0表示不限制
+     * @param ttlMillis 存活时间, 小于等于0表示禁用缓存
+     */
+    public void configure(long maxEntries, long maxWeight, long ttlMillis){
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlMillis;
+        this.enabled = (maxEntries > 0 || maxWeight > 0) && ttlMillis > 0;
+        for(Segment segment : segments){
+            synchronized (segment) {
+                if(enabled) {
+                    segment.evict();
+                }else{
+                    segment.clear();
+                }
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public V getIfPresent(K key){
+        if(!enabled){
+            return null;
+        }
+        V value = segmentFor(key).get(key);
+        if(value == null){
+            missTimes.increment();
+        }else{
+            hitTimes.increment();
+        }
+        return value;
+    }
+
+    public void put(K key, V value){
+        if(!enabled){
+            return;
+        }
+        segmentFor(key).put(key, value);
+    }
+
+    /**
+     * 先查缓存, 未命中时调用loader加载, 同一个KEY同时只有一个加载在进行
+     * 每个调用方得到各自的future, 取消它不影响其它共享同一次加载的调用方, 所有调用方都取消后取消loader返回的future
+     * @param key
+     * @param loader 异步加载
+     * @param cacheable 加载结果是否可以缓存
+     * @return
+     */
+    public CompletableFuture<V> get(K key, Function<? super K, CompletableFuture<V>> loader, Predicate<? super V> cacheable){
+        if(!enabled){
+            return loader.apply(key);
+        }
+        V value = getIfPresent(key);
+        if(value != null){
+            return CompletableFuture.completedFuture(value);
+        }
+        while (true) {
+            Loading<V> existing = loadings.get(key);
+            if (existing != null) {
+                CompletableFuture<V> waiter = existing.join();
+                if (waiter != null) {
+                    coalescedTimes.increment();
+                    return waiter;
+                }
+                // 所有调用方都已经取消, 这次加载正在被取消, 重新加载
+                loadings.remove(key, existing);
+                continue;
+            }
+            Loading<V> loading = new Loading<>();
+            if (loadings.putIfAbsent(key, loading) != null) {
+                continue;
+            }
+            CompletableFuture<V> waiter = loading.join();
+            CompletableFuture<V> future;
+            try {
+                future = loader.apply(key);
+            } catch (Throwable e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((v, e) -> {
+                if (e == null && v != null && cacheable.test(v)) {
+                    put(key, v);
+                }
+                loadings.remove(key, loading);
+                if (e == null) {
+                    loading.result.complete(v);
+                } else {
+                    loading.result.completeExceptionally(e);
+                }
+            });
+            loading.start(future);
+            return waiter;
+        }
+    }
+
+    /**
+     * @param key
+     * @return 是否删除了缓存的条目
+     */
+    public boolean invalidate(K key){
+        return segmentFor(key).remove(key);
+    }
+
+    public void invalidateAll(){
+        for(Segment segment : segments){
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public long size(){
+        long size = 0;
+        for(Segment segment : segments){
+            synchronized (segment) {
+                size += segment.probation.size() + segment.protectedEntries.size();
+            }
+        }
+        return size;
+    }
+
+    public long weight(){
+        long weight = 0;
+        for(Segment segment : segments){
+            synchronized (segment) {
+                weight += segment.probationWeight + segment.protectedWeight;
+            }
+        }
+        return weight;
+    }
+
+    public long getHitTimes() {
+        return hitTimes.sum();
+    }
+
+    public long getMissTimes() {
+        return missTimes.sum();
+    }
+
+    public long getEvictionTimes() {
+        return evictionTimes.sum();
+    }
+
+    public long getExpirationTimes() {
+        return expirationTimes.sum();
+    }
+
+    public long getCoalescedTimes() {
+        return coalescedTimes.sum();
+    }
+
+    public String getStatus(){
+        long hit = getHitTimes();
+        long miss = getMissTimes();
+        long total = hit + miss;
+        return name + ": 条目数 " + size()
+                + ", 权重 " + weight()
+                + ", 命中 " + hit
+                + ", 未命中 " + miss
+                + ", 命中率 " + (total == 0 ? 0 : hit * 100 / total) + "%"
+                + ", 淘汰 " + getEvictionTimes()
+                + ", 过期 " + getExpirationTimes()
+                + ", 合并加载 " + getCoalescedTimes();
+    }
+
+    private Segment segmentFor(K key){
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * 一次进行中的加载及等待它的调用方数
+     */
+    private static final class Loading<V> {
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        private CompletableFuture<V> source;
+        private int waiters;
+        private boolean abandoned;
+
+        /**
+         * 增加一个调用方
+         * @return 调用方的future, 加载已经被所有调用方放弃时返回null
+         */
+        private synchronized CompletableFuture<V> join(){
+            if(abandoned){
+                return null;
+            }
+            waiters++;
+            CompletableFuture<V> waiter = new CompletableFuture<>();
+            result.whenComplete((v, e) -> {
+                if(e == null){
+                    waiter.complete(v);
+                }else{
+                    waiter.completeExceptionally(e);
+                }
+            });
+            waiter.whenComplete((v, e) -> {
+                if(waiter.isCancelled()){
+                    leave();
+                }
+            });
+            return waiter;
+        }
+
+        /**
+         * 一个调用方取消, 最后一个调用方取消时取消加载
+         */
+        private void leave(){
+            CompletableFuture<V> source;
+            synchronized (this){
+                if(--waiters > 0 || result.isDone()){
+                    return;
+                }
+                abandoned = true;
+                source = this.source;
+            }
+            if(source != null){
+                source.cancel(false);
+            }
+        }
+
+        /**
+         * 加载已经开始, 开始之前所有调用方都已经取消时立即取消
+         * @param source
+         */
+        private void start(CompletableFuture<V> source){
+            boolean abandoned;
+            synchronized (this){
+                this.source = source;
+                abandoned = this.abandoned;
+            }
+            if(abandoned){
+                source.cancel(false);
+            }
+        }
+    }
+
+    private static final class Node<V> {
+        private final V value;
+        private final long weight;
+        private final long expireAt;
+
+        private Node(V value, long weight, long expireAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private final class Segment {
+        // 访问顺序的LinkedHashMap, 头部是最久未访问的条目
+        private final LinkedHashMap<K, Node<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<K, Node<V>> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationWeight;
+        private long protectedWeight;
+
+        private synchronized V get(K key){
+            Node<V> node = protectedEntries.get(key);
+            if(node != null){
+                if(expired(node)){
+                    protectedEntries.remove(key);
+                    protectedWeight -= node.weight;
+                    expirationTimes.increment();
+                    return null;
+                }
+                return node.value;
+            }
+            node = probation.remove(key);
+            if(node == null){
+                return null;
+            }
+            probationWeight -= node.weight;
+            if(expired(node)){
+                expirationTimes.increment();
+                return null;
+            }
+            // 试用区的条目再次命中, 晋升到保护区
+            protectedEntries.put(key, node);
+            protectedWeight += node.weight;
+            demote();
+            return node.value;
+        }
+
+        private synchronized void put(K key, V value){
+            Node<V> node = new Node<>(value, weigher.applyAsLong(key, value), System.currentTimeMillis() + ttlMillis);
+            Node<V> old = protectedEntries.get(key);
+            if(old != null){
+                protectedEntries.put(key, node);
+                protectedWeight += node.weight - old.weight;
+                demote();
+            }else {
+                old = probation.put(key, node);
+                probationWeight += node.weight - (old == null ? 0 : old.weight);
+            }
+            evict();
+        }
+
+        private synchronized boolean remove(K key){
+            Node<V> node = protectedEntries.remove(key);
+            if(node != null){
+                protectedWeight -= node.weight;
+                return true;
+            }
+            node = probation.remove(key);
+            if(node != null){
+                probationWeight -= node.weight;
+                return true;
+            }
+            return false;
+        }
+
+        private void clear(){
+            probation.clear();
+            protectedEntries.clear();
+            probationWeight = 0;
+            protectedWeight = 0;
+        }
+
+        /**
+         * 保护区超出容量时, 把最久未访问的条目降级到试用区
+         */
+        private void demote(){
+            Iterator<Map.Entry<K, Node<V>>> iterator = protectedEntries.entrySet().iterator();
+            while (iterator.hasNext() && overflow(protectedEntries.size(), protectedWeight, PROTECTED_PERCENT)){
+                Map.Entry<K, Node<V>> entry = iterator.next();
+                iterator.remove();
+                protectedWeight -= entry.getValue().weight;
+                probation.put(entry.getKey(), entry.getValue());
+                probationWeight += entry.getValue().weight;
+            }
+        }
+
+        /**
+         * 超出容量时优先淘汰试用区中最久未访问的条目
+         */
+        private void evict(){
+            demote();
+            evict(probation.entrySet().iterator(), true);
+            evict(protectedEntries.entrySet().iterator(), false);
+        }
+
+        private void evict(Iterator<Map.Entry<K, Node<V>>> iterator, boolean probationSide){
+            while (iterator.hasNext()
+                    && overflow(probation.size() + protectedEntries.size(), probationWeight + protectedWeight, 100)){
+                Map.Entry<K, Node<V>> entry = iterator.next();
+                iterator.remove();
+                if(probationSide){
+                    probationWeight -= entry.getValue().weight;
+                }else{
+                    protectedWeight -= entry.getValue().weight;
+                }
+                evictionTimes.increment();
+            }
+        }
+
+        private boolean overflow(long entries, long weight, int percent){
+            long segmentMaxEntries = maxEntries;
+            long segmentMaxWeight = maxWeight;
+            if(segmentMaxEntries > 0 && entries > Math.max(1, (segmentMaxEntries + SEGMENTS - 1) / SEGMENTS * percent / 100)){
+                return true;
+            }
+            return segmentMaxWeight > 0 && weight > Math.max(1, (segmentMaxWeight + SEGMENTS - 1) / SEGMENTS * percent / 100);
+        }
+
+        private boolean expired(Node<V> node){
+            return System.currentTimeMillis() > node.expireAt;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package org.apdplat.service.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * REDIS近端缓存
+ * 在进程内缓存GET及HGET的结果, 命中时不需要借用连接, 也没有网络往返
+ * 容量有限, 条目超过存活时间后失效, 可以只缓存指定前缀的KEY
+ * 通过JedisAPI的写方法修改数据时, 立即删除本地缓存, 并在失效通知频道上发布被修改的KEY
+ * 每个实例的后台线程订阅这个频道, 收到通知后删除各自缓存的KEY, 发布和订阅必须使用同一个REDIS服务
+ * 订阅断开期间可能错过通知, 重新订阅成功时清空缓存; 不经过JedisAPI的写操作只能依靠存活时间失效
+ */
+public class RedisNearCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisNearCache.class);
+    // 按KEY的哈希分条记录失效次数, 用于发现加载期间被修改的KEY
+    private static final int STRIPES = 1024;
+    // 订阅失败后重试的间隔
+    private static final long RESUBSCRIBE_INTERVAL_MILLIS = 1000;
+
+    private final Supplier<Jedis> jedisSupplier;
+    private final BiConsumer<String, String> publisher;
+    private final LocalCache<String, String> values = new LocalCache<>("REDIS近端缓存(GET)",
+            (key, value) -> 2L * (key.length() + value.length()) + 64);
+    private final LocalCache<String, Map<String, String>> hashes = new LocalCache<>("REDIS近端缓存(HGET)",
+            (key, fields) -> {
+                long weight = 2L * key.length() + 64;
+                for(Map.Entry<String, String> field : fields.entrySet()){
+                    weight += 2L * (field.getKey().length() + field.getValue().length()) + 32;
+                }
+                return weight;
+            });
+    private final AtomicLongArray invalidationStamps = new AtomicLongArray(STRIPES);
+
+    private final LongAdder invalidationTimes = new LongAdder();
+    private final LongAdder staleEntryTimes = new LongAdder();
+    private final LongAdder discardedLoadTimes = new LongAdder();
+
+    private volatile String[] prefixes = new String[0];
+    private volatile String channel = "";
+    private volatile Subscriber subscriber;
+    // 当前配置, 用于判断配置是否变化
+    private boolean configured;
+    private long maxEntries;
+    private long maxBytes;
+    private long ttlMillis;
+
+    /**
+     * @param jedisSupplier 获取REDIS连接, 用于订阅失效通知, 所有REDIS服务都不可用时返回null
+     * @param publisher 在失效通知频道上发布被修改的KEY, 参数为频道和KEY
+     */
+    public RedisNearCache(Supplier<Jedis> jedisSupplier, BiConsumer<String, String> publisher){
+        this.jedisSupplier = jedisSupplier;
+        this.publisher = publisher;
+    }
+
+    /**
+     * 配置没有变化时什么也不做, 只有是否订阅或者频道变化时才重新订阅
+     * @param maxEntries GET和HGET缓存各自的最大条目数, 小于等于0表示不限制
+     * @param maxBytes GET和HGET缓存各自的最大字节数, 小于等于0表示不限制
+     * @param ttlMillis 存活时间
+     * @param prefixes 只缓存以这些前缀开始的KEY, 为空时缓存所有KEY
+     * @param channel 失效通知频道, 为空时不订阅, 只依靠存活时间失效
+     */
+    public synchronized void configure(long maxEntries, long maxBytes, long ttlMillis, String[] prefixes, String channel){
+        if(configured && maxEntries == this.maxEntries && maxBytes == this.maxBytes && ttlMillis == this.ttlMillis
+                && Arrays.equals(prefixes, this.prefixes) && channel.equals(this.channel)){
+            return;
+        }
+        configured = true;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        values.configure(maxEntries, maxBytes, ttlMillis);
+        hashes.configure(maxEntries, maxBytes, ttlMillis);
+        this.prefixes = prefixes;
+        this.channel = channel;
+        boolean subscribe = isEnabled() && !"".equals(channel);
+        if(subscriber != null){
+            if(subscribe && subscriber.channel.equals(channel)){
+                // 继续使用原来的订阅
+                return;
+            }
+            subscriber.stop();
+            subscriber = null;
+        }
+        if(subscribe){
+            subscriber = new Subscriber(channel);
+            Thread thread = new Thread(subscriber, "redis-near-cache-subscriber");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public boolean isEnabled(){
+        return values.isEnabled();
+    }
+
+    /**
+     * 先查缓存, 未命中时调用loader从REDIS读取
+     * @param key
+     * @param loader
+     * @return
+     */
+    public String get(String key, Function<String, String> loader){
+        if(!cacheable(key)){
+            return loader.apply(key);
+        }
+        String value = values.getIfPresent(key);
+        if(value != null){
+            return value;
+        }
+        long stamp = stamp(key);
+        value = loader.apply(key);
+        putValue(key, value, stamp);
+        return value;
+    }
+
+    /**
+     * 先查缓存, 未命中时调用loader从REDIS异步读取
+     * @param key
+     * @param loader
+     * @return
+     */
+    public CompletableFuture<String> getAsync(String key, Function<String, CompletableFuture<String>> loader){
+        if(!cacheable(key)){
+            return loader.apply(key);
+        }
+        String value = values.getIfPresent(key);
+        if(value != null){
+            return CompletableFuture.completedFuture(value);
+        }
+        long stamp = stamp(key);
+        return loader.apply(key).thenApply(v -> {
+            putValue(key, v, stamp);
+            return v;
+        });
+    }
+
+    /**
+     * 先查缓存, 未命中时调用loader从REDIS读取, 同一个KEY的字段缓存在一起, KEY失效时一起删除
+     * @param key
+     * @param field
+     * @param loader
+     * @return
+     */
+    public String hget(String key, String field, Function<String, String> loader){
+        if(!cacheable(key)){
+            return loader.apply(field);
+        }
+        Map<String, String> fields = hashes.getIfPresent(key);
+        if(fields != null && fields.containsKey(field)){
+            return fields.get(field);
+        }
+        long stamp = stamp(key);
+        String value = loader.apply(field);
+        putField(key, fields, field, value, stamp);
+        return value;
+    }
+
+    /**
+     * 先查缓存, 未命中时调用loader从REDIS异步读取
+     * @param key
+     * @param field
+     * @param loader
+     * @return
+     */
+    public CompletableFuture<String> hgetAsync(String key, String field, Function<String, CompletableFuture<String>> loader){
+        if(!cacheable(key)){
+            return loader.apply(field);
+        }
+        Map<String, String> fields = hashes.getIfPresent(key);
+        if(fields != null && fields.containsKey(field)){
+            return CompletableFuture.completedFuture(fields.get(field));
+        }
+        long stamp = stamp(key);
+        return loader.apply(field).thenApply(v -> {
+            putField(key, fields, field, v, stamp);
+            return v;
+        });
+    }
+
+    /**
+     * @param stamp 开始读取前KEY的失效戳
+     */
+    private void putValue(String key, String value, long stamp){
+        if(value == null){
+            return;
+        }
+        values.put(key, value);
+        if(stamp(key) != stamp){
+            // 读取期间KEY被修改, 读到的值可能已经过时, 不能留在缓存中
+            values.invalidate(key);
+            discardedLoadTimes.increment();
+        }
+    }
+
+    private void putField(String key, Map<String, String> fields, String field, String value, long stamp){
+        if(value == null){
+            return;
+        }
+        // 缓存的字段表不可变, 增加字段时复制
+        Map<String, String> merged = fields == null ? new HashMap<>() : new HashMap<>(fields);
+        merged.put(field, value);
+        hashes.put(key, Collections.unmodifiableMap(merged));
+        if(stamp(key) != stamp){
+            hashes.invalidate(key);
+            discardedLoadTimes.increment();
+        }
+    }
+
+    /**
+     * 删除本地缓存的KEY
+     * @param key
+     */
+    public void invalidate(String key){
+        invalidationStamps.incrementAndGet(stripe(key));
+        boolean removed = values.invalidate(key);
+        removed |= hashes.invalidate(key);
+        if(removed){
+            staleEntryTimes.increment();
+        }
+    }
+
+    /**
+     * 修改KEY完成之后调用, 删除本地缓存并通知其它实例
+     * @param key
+     */
+    public void onWritten(String key){
+        if(isEnabled()){
+            invalidate(key);
+        }
+        // 本实例没有启用缓存时, 其它实例可能启用了
+        String channel = this.channel;
+        if(!"".equals(channel)){
+            publisher.accept(channel, key);
+        }
+    }
+
+    public void invalidateAll(){
+        for(int i=0; i<STRIPES; i++){
+            invalidationStamps.incrementAndGet(i);
+        }
+        values.invalidateAll();
+        hashes.invalidateAll();
+    }
+
+    /**
+     * 发布失效通知的REDIS服务变化时调用, 断开当前订阅, 后台线程随后在新的REDIS服务上重新订阅
+     */
+    public void resubscribe(){
+        Subscriber subscriber = this.subscriber;
+        if(subscriber != null){
+            subscriber.interrupt();
+        }
+    }
+
+    public void close(){
+        Subscriber subscriber = this.subscriber;
+        if(subscriber != null){
+            subscriber.stop();
+        }
+    }
+
+    public String getStatus(){
+        Subscriber subscriber = this.subscriber;
+        return values.getStatus() + "\n"
+                + hashes.getStatus() + "\n"
+                + "失效通知频道: " + ("".equals(channel) ? "未启用" : channel + (subscriber != null && subscriber.subscribed ? " 已订阅" : " 未订阅"))
+                + ", 收到失效通知 " + invalidationTimes.sum() + " 次"
+                + ", 删除过时条目 " + staleEntryTimes.sum() + " 次"
+                + ", 读取期间被修改而丢弃 " + discardedLoadTimes.sum() + " 次";
+    }
+
+    private boolean cacheable(String key){
+        if(!isEnabled()){
+            return false;
+        }
+        String[] prefixes = this.prefixes;
+        if(prefixes.length == 0){
+            return true;
+        }
+        for(String prefix : prefixes){
+            if(key.startsWith(prefix)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long stamp(String key){
+        return invalidationStamps.get(stripe(key));
+    }
+
+    private int stripe(String key){
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+    /**
+     * 订阅失效通知, 连接断开后自动重新订阅
+     * 停止或者重新订阅的请求可能发生在取得连接之后, 订阅确认之前, 此时无法取消订阅, 由订阅确认时检查并立即取消订阅
+     */
+    private class Subscriber extends JedisPubSub implements Runnable {
+        private final String channel;
+        private volatile boolean running = true;
+        private volatile boolean subscribed;
+        // 本次订阅开始之后收到了重新订阅的请求
+        private volatile boolean resubscribe;
+
+        private Subscriber(String channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            while (running){
+                Jedis jedis = null;
+                try {
+                    resubscribe = false;
+                    jedis = jedisSupplier.get();
+                    if(jedis != null && running) {
+                        // 阻塞直到取消订阅或者连接断开
+                        jedis.subscribe(this, channel);
+                    }
+                }catch (Throwable e){
+                    if(running) {
+                        LOGGER.error("订阅REDIS近端缓存失效通知失败: " + channel, e);
+                    }
+                }finally {
+                    subscribed = false;
+                    if(jedis != null){
+                        jedis.close();
+                    }
+                }
+                if(running){
+                    try {
+                        Thread.sleep(RESUBSCRIBE_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            if(!running || resubscribe){
+                // 订阅确认之前收到了停止或者重新订阅的请求
+                unsubscribe();
+                return;
+            }
+            subscribed = true;
+            // 订阅之前可能错过了失效通知
+            invalidateAll();
+            LOGGER.info("订阅REDIS近端缓存失效通知: {}", channel);
+        }
+
+        @Override
+        public void onMessage(String channel, String key) {
+            invalidationTimes.increment();
+            invalidate(key);
+        }
+
+        private void interrupt(){
+            resubscribe = true;
+            try {
+                if(subscribed) {
+                    unsubscribe();
+                }
+            }catch (Throwable e){
+                LOGGER.error("取消订阅REDIS近端缓存失效通知失败", e);
+            }
+        }
+
+        private void stop(){
+            running = false;
+            interrupt();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.apdplat.service.configration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 预先解析的配置项
+ * 每次发布新的配置快照时解析一次, 读取时只有一次volatile读, 不查找, 不解析
+ * 解析规则和 ConfTools.getInt, getBoolean, get 相同, 值不合法时记录错误并保留原来的值, 第一次加载时为默认值
+ * 用法:
+ *         private static final ConfKey<Integer> TIMEOUT = ConfKey.ofInt("search.api.timeout.millis", 1000);
+ *         int timeout = TIMEOUT.get();
+ */
+public class ConfKey<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfKey.class);
+
+    private final String key;
+    private final T defaultValue;
+    private final Function<String, T> parser;
+
+    private volatile T value;
+
+    private ConfKey(String key, T defaultValue, Function<String, T> parser) {
+        this.key = key;
+        this.defaultValue = defaultValue;
+        this.parser = parser;
+        this.value = defaultValue;
+    }
+
+    public static ConfKey<Integer> ofInt(String key, int defaultValue){
+        return register(new ConfKey<>(key, defaultValue, value -> Integer.parseInt(value.trim())));
+    }
+
+    public static ConfKey<Boolean> ofBoolean(String key, boolean defaultValue){
+        return register(new ConfKey<>(key, defaultValue, value -> value.contains("true")));
+    }
+
+    public static ConfKey<String> ofString(String key, String defaultValue){
+        return register(new ConfKey<>(key, defaultValue, Function.identity()));
+    }
+
+    private static <T> ConfKey<T> register(ConfKey<T> confKey){
+        ConfTools.register(confKey);
+        return confKey;
+    }
+
+    public String getKey(){
+        return key;
+    }
+
+    public T get(){
+        return value;
+    }
+
+    /**
+     * 按新的配置快照重新解析
+     * @param conf
+     */
+    void refresh(Map<String, String> conf){
+        String text = conf.get(key);
+        if(text == null){
+            value = defaultValue;
+            return;
+        }
+        try {
+            value = parser.apply(text);
+        }catch (RuntimeException e){
+            // 配置重新加载时一个错误的值不影响正在使用的值
+            LOGGER.error("错误的配置：" + key + "=" + text + ", 保留原来的值: " + value, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return key + "=" + value;
+    }
+}
@@ -1,23 +1,129 @@
 package org.apdplat.service.configration;
 
-import java.util.Observer;
-import java.util.Vector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
+ * 配置变化通知
+ * 观察者可以只订阅某些前缀的配置项, 只有这些配置项发生变化时才收到通知
+ * 通知在单独的线程中按顺序异步发送, 处理慢的观察者不会阻塞配置文件监控
+ * 观察者的update方法收到的arg为发生变化的配置项名称集合(Set<String>), 只包括订阅的前缀
  * Created by ysc on 7/5/16.
  */
 public class ConfManager {
-    private static final Vector<Observer> OBSERVERS = new Vector<>();
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfManager.class);
+
+    private static final List<Subscription> OBSERVERS = new CopyOnWriteArrayList<>();
+    private static final ExecutorService EXECUTOR_SERVICE = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "conf-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    /**
+     * 订阅所有配置项的变化
+     * @param observer
+     */
     public static void addObserver(Observer observer){
+        addObserver(observer, new String[0]);
+    }
+
+    /**
+     * 订阅指定前缀的配置项的变化, 同一个观察者重复订阅时忽略
+     * @param observer
+     * @param prefixes 配置项前缀, 如 redis. search.api. , 为空时订阅所有配置项
+     */
+    public static synchronized void addObserver(Observer observer, String... prefixes){
         if (observer == null)
             throw new NullPointerException();
-        if (!OBSERVERS.contains(observer)) {
-            OBSERVERS.addElement(observer);
+        for(Subscription subscription : OBSERVERS){
+            if(subscription.observer == observer){
+                return;
+            }
         }
+        OBSERVERS.add(new Subscription(observer, prefixes));
     }
 
+    /**
+     * 通知所有观察者, 所有配置项都视为发生了变化
+     */
     public static void notifyObservers() {
-        OBSERVERS.forEach(observer -> observer.update(null, null));
+        notifyObservers(ConfTools.snapshot().keySet());
+    }
+
+    /**
+     * 异步通知订阅了发生变化的配置项的观察者
+     * @param changedKeys 发生变化的配置项
+     */
+    public static void notifyObservers(Set<String> changedKeys) {
+        if(changedKeys.isEmpty()){
+            return;
+        }
+        Set<String> keys = Collections.unmodifiableSet(new HashSet<>(changedKeys));
+        EXECUTOR_SERVICE.submit(() -> {
+            for(Subscription subscription : OBSERVERS){
+                Set<String> matched = subscription.match(keys);
+                if(matched.isEmpty()){
+                    continue;
+                }
+                try {
+                    subscription.observer.update(null, matched);
+                }catch (Throwable e){
+                    LOGGER.error("通知观察者配置变化失败: " + subscription.observer, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 比较两个配置快照, 新增, 删除及值不同的配置项视为发生了变化
+     * @param before
+     * @param after
+     * @return
+     */
+    public static Set<String> changedKeys(Map<String, String> before, Map<String, String> after){
+        Set<String> changed = new HashSet<>();
+        for(Map.Entry<String, String> entry : after.entrySet()){
+            if(!entry.getValue().equals(before.get(entry.getKey()))){
+                changed.add(entry.getKey());
+            }
+        }
+        for(String key : before.keySet()){
+            if(!after.containsKey(key)){
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    private static class Subscription {
+        private final Observer observer;
+        private final String[] prefixes;
+
+        private Subscription(Observer observer, String[] prefixes) {
+            this.observer = observer;
+            this.prefixes = prefixes.clone();
+        }
+
+        private Set<String> match(Set<String> keys){
+            if(prefixes.length == 0){
+                return keys;
+            }
+            Set<String> matched = new HashSet<>();
+            for(String key : keys){
+                for(String prefix : prefixes){
+                    if(key.startsWith(prefix)){
+                        matched.add(key);
+                        break;
+                    }
+                }
+            }
+            return matched;
+        }
     }
 }
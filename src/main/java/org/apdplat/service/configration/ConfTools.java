@@ -4,8 +4,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -17,122 +20,184 @@ import java.util.concurrent.atomic.AtomicInteger;
  *         可以用系统属性覆盖以上两个文件的配置
  *         以 # 号开始的行为注释
  *         K 和 V 之间用 = 号连接
+ *         每次加载生成一个不可变的配置快照并整体发布, 读取配置不加锁
+ *         频繁读取的配置项使用 {@link ConfKey}, 读取时不需要再解析
  * Created by ysc on 7/5/16.
  */
 public class ConfTools {
     private static final Logger LOGGER = LoggerFactory.getLogger(ConfTools.class);
 
-    private static final Map<String, String> CONF = new HashMap<>();
+    // 当前生效的配置, 每次加载生成新的不可变快照整体替换, 读取方不会看到清空或者加载了一半的配置
+    private static volatile Snapshot CONF = new Snapshot(Collections.emptyMap(), 0);
+    // 预先解析的配置项, 每次发布快照后重新解析
+    private static final List<ConfKey<?>> KEYS = new CopyOnWriteArrayList<>();
 
-    public static void set(String key, String value){
-        CONF.put(key, value);
+    public static synchronized void set(String key, String value){
+        Map<String, String> conf = new HashMap<>(CONF.values);
+        conf.put(key, value);
+        publish(conf);
     }
     public static boolean getBoolean(String key, boolean defaultValue){
-        String value = CONF.get(key) == null ? Boolean.valueOf(defaultValue).toString() : CONF.get(key);
+        String value = CONF.values.get(key);
         if(LOGGER.isDebugEnabled()) {
-            LOGGER.debug("获取配置项：" + key + "=" + value);
+            LOGGER.debug("获取配置项：{}={}", key, value == null ? defaultValue : value);
         }
-        return value.contains("true");
+        return value == null ? defaultValue : value.contains("true");
     }
     public static boolean getBoolean(String key){
         return getBoolean(key, false);
     }
     public static int getInt(String key, int defaultValue){
-        int value = CONF.get(key) == null ? defaultValue : Integer.parseInt(CONF.get(key).trim());
+        String value = CONF.values.get(key);
+        int result = value == null ? defaultValue : Integer.parseInt(value.trim());
         if(LOGGER.isDebugEnabled()) {
-            LOGGER.debug("获取配置项：" + key + "=" + value);
+            LOGGER.debug("获取配置项：{}={}", key, result);
         }
-        return value;
+        return result;
     }
     public static int getInt(String key){
         return getInt(key, -1);
     }
     public static String get(String key, String defaultValue){
-        String value = CONF.get(key) == null ? defaultValue : CONF.get(key);
+        String value = CONF.values.get(key);
+        if(value == null){
+            value = defaultValue;
+        }
         if(LOGGER.isDebugEnabled()) {
-            LOGGER.debug("获取配置项：" + key + "=" + value);
+            LOGGER.debug("获取配置项：{}={}", key, value);
         }
         return value;
     }
     public static String get(String key){
-        String value = CONF.get(key);
+        String value = CONF.values.get(key);
         if(LOGGER.isDebugEnabled()) {
-            LOGGER.debug("获取配置项：" + key + "=" + value);
+            LOGGER.debug("获取配置项：{}={}", key, value);
         }
         return value;
     }
+
+    /**
+     * 配置快照的版本号, 每次加载或者修改配置后加1
+     * 组件可以保存上次使用的版本号, 版本号没有变化时不需要重新读取配置
+     * @return
+     */
+    public static long getVersion(){
+        return CONF.version;
+    }
+
+    /**
+     * 当前配置的不可变快照
+     * @return
+     */
+    public static Map<String, String> snapshot(){
+        return CONF.values;
+    }
+
     static{
         reload();
     }
     /**
      * 重新加载配置文件
      */
-    public static void reload(){
-        CONF.clear();
+    public static synchronized void reload(){
+        Map<String, String> conf = new HashMap<>();
         LOGGER.info("开始加载配置文件");
         long start = System.currentTimeMillis();
-        loadConf("conf/conf.txt");
-        loadConf("conf/conf.production.txt");
-        checkSystemProperties();
+        loadConf("conf/conf.txt", conf);
+        loadConf("conf/conf.production.txt", conf);
+        checkSystemProperties(conf);
         long cost = System.currentTimeMillis() - start;
-        LOGGER.info("配置文件加载完毕，耗时" + cost + " 毫秒，配置项数目：" + CONF.size());
+        LOGGER.info("配置文件加载完毕，耗时" + cost + " 毫秒，配置项数目：" + conf.size());
         LOGGER.info("配置信息：");
         AtomicInteger i = new AtomicInteger();
-        for(String key : CONF.keySet()){
-            LOGGER.info(i.incrementAndGet() + "、" + key + "=" + CONF.get(key));
+        for(String key : conf.keySet()){
+            LOGGER.info(i.incrementAndGet() + "、" + key + "=" + conf.get(key));
         }
+        publish(conf);
     }
     /**
      * 强制覆盖默认配置
      * @param confFile 配置文件
      */
-    public static void forceOverride(File confFile) {
+    public static synchronized void forceOverride(File confFile) {
+        // 在当前配置的副本上覆盖, 加载失败时当前配置保持不变
+        Map<String, String> conf = new HashMap<>(CONF.values);
         try(InputStream in = new FileInputStream(confFile)){
             LOGGER.info("使用配置文件 {} 强制覆盖默认配置", confFile.getAbsolutePath());
-            loadConf(in);
+            loadConf(in, conf);
         } catch (Exception ex) {
             LOGGER.error("强制覆盖默认配置失败：", ex);
+            return;
         }
         int i=1;
-        for(String key : CONF.keySet()){
-            LOGGER.info((i++)+"、"+key+"="+ CONF.get(key));
+        for(String key : conf.keySet()){
+            LOGGER.info((i++)+"、"+key+"="+ conf.get(key));
         }
+        publish(conf);
     }
     /**
      * 强制覆盖默认配置
      * @param confFile 配置文件路径
      */
     public static void forceOverride(String confFile) {
-        File file = new File(confFile);
-        try(InputStream in = new FileInputStream(file)){
-            LOGGER.info("使用配置文件 {} 强制覆盖默认配置", file.getAbsolutePath());
-            loadConf(in);
-        } catch (Exception ex) {
-            LOGGER.error("强制覆盖默认配置失败：", ex);
+        forceOverride(new File(confFile));
+    }
+
+    /**
+     * 注册预先解析的配置项, 立即按当前配置解析一次
+     * @param key
+     */
+    static synchronized void register(ConfKey<?> key){
+        key.refresh(CONF.values);
+        KEYS.add(key);
+    }
+
+    /**
+     * 发布新的配置快照, 然后重新解析所有预先解析的配置项
+     * 内容和当前配置相同时不发布, 版本号不变
+     * @param conf
+     */
+    private static void publish(Map<String, String> conf){
+        if(conf.equals(CONF.values)){
+            return;
         }
-        int i=1;
-        for(String key : CONF.keySet()){
-            LOGGER.info((i++)+"、"+key+"="+ CONF.get(key));
+        Snapshot snapshot = new Snapshot(Collections.unmodifiableMap(conf), CONF.version + 1);
+        CONF = snapshot;
+        for(ConfKey<?> key : KEYS){
+            key.refresh(snapshot.values);
         }
     }
+
+    private static class Snapshot {
+        private final Map<String, String> values;
+        private final long version;
+
+        private Snapshot(Map<String, String> values, long version) {
+            this.values = values;
+            this.version = version;
+        }
+    }
+
     /**
      * 加载配置文件
      * @param confFile 类路径下的配置文件
+     * @param conf 加载到这个配置中
      */
-    private static void loadConf(String confFile) {
+    private static void loadConf(String confFile, Map<String, String> conf) {
         InputStream in = ConfTools.class.getClassLoader().getResourceAsStream(confFile);
         if(in == null){
             LOGGER.info("未找到配置文件："+confFile);
             return;
         }
         LOGGER.info("加载配置文件："+confFile);
-        loadConf(in);
+        loadConf(in, conf);
     }
     /**
      * 加载配置文件
      * @param in 文件输入流
+     * @param conf 加载到这个配置中
      */
-    private static void loadConf(InputStream in) {
+    private static void loadConf(InputStream in, Map<String, String> conf) {
         try(BufferedReader reader = new BufferedReader(new InputStreamReader(in, "utf-8"))){
             String line;
             while((line = reader.readLine()) != null){
@@ -149,12 +214,12 @@ public class ConfTools {
                 if(index>0 && line.length()>index+1) {
                     String key = line.substring(0, index).trim();
                     String value = line.substring(index + 1, line.length()).trim();
-                    CONF.put(key, value);
+                    conf.put(key, value);
                 }
                 //有K无V
                 else if(index>0 && line.length()==index+1) {
                     String key = line.substring(0, index).trim();
-                    CONF.put(key, "");
+                    conf.put(key, "");
                 }else{
                     LOGGER.error("错误的配置："+line);
                 }
@@ -167,11 +232,11 @@ public class ConfTools {
     /**
      * 使用系统属性覆盖配置文件
      */
-    private static void checkSystemProperties() {
-        for(String key : CONF.keySet()){
+    private static void checkSystemProperties(Map<String, String> conf) {
+        for(String key : conf.keySet()){
             String value = System.getProperty(key);
             if(value != null){
-                CONF.put(key, value);
+                conf.put(key, value);
                 LOGGER.info("系统属性覆盖默认配置："+key+"="+value);
             }
         }
@@ -7,18 +7,24 @@ import java.io.IOException;
 import java.nio.file.*;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * Created by ysc on 7/5/16.
  */
 public class ConfWatcher {
     private static final Logger LOGGER = LoggerFactory.getLogger(ConfWatcher.class);
+    private static final ConfKey<Integer> DEBOUNCE_MILLIS = ConfKey.ofInt("conf.watch.debounce.millis", 500);
 
     private static WatchService watchService = null;
     private static Map<WatchKey, Path> directories = null;
     private static ExecutorService EXECUTOR_SERVICE = null;
+    // 合并短时间内的多次变化, 最后一次变化之后等待一段时间再加载
+    private static ScheduledExecutorService RELOAD_EXECUTOR_SERVICE = null;
+    private static ScheduledFuture<?> pendingReload = null;
+    private static Path pendingConf = null;
+    private static Path pendingProductionConf = null;
     /**
      * 开始配置文件监控（启动一个新的线程）
      */
@@ -26,7 +32,7 @@ public class ConfWatcher {
         startWatch(Paths.get(conf));
     }
     public static void startWatch(Path conf) {
-        if(watchService != null || directories != null || EXECUTOR_SERVICE != null){
+        if(watchService != null || directories != null || EXECUTOR_SERVICE != null || RELOAD_EXECUTOR_SERVICE != null){
             LOGGER.info("配置文件监控服务已被启用, 不需要重复启动, 忽略本次请求");
             return;
         }
@@ -35,6 +41,7 @@ public class ConfWatcher {
             watchService = FileSystems.getDefault().newWatchService();
             directories = new HashMap<>();
             EXECUTOR_SERVICE = Executors.newSingleThreadExecutor();
+            RELOAD_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor();
             registerConf(conf);
             EXECUTOR_SERVICE.submit(()->watch(conf));
         } catch (IOException ex) {
@@ -59,6 +66,15 @@ public class ConfWatcher {
             EXECUTOR_SERVICE.shutdownNow();
             EXECUTOR_SERVICE = null;
         }
+        synchronized (ConfWatcher.class) {
+            if (RELOAD_EXECUTOR_SERVICE != null) {
+                RELOAD_EXECUTOR_SERVICE.shutdownNow();
+                RELOAD_EXECUTOR_SERVICE = null;
+            }
+            pendingReload = null;
+            pendingConf = null;
+            pendingProductionConf = null;
+        }
         if(directories != null){
             directories.clear();
             directories = null;
@@ -92,21 +108,9 @@ public class ConfWatcher {
                     switch (kind.name()) {
                         case "ENTRY_MODIFY":
                             LOGGER.info("配置文件发生变化：{}", absolutePath);
-                            if(absolutePath.toString().endsWith("conf.txt")){
-                                // 加载conf.txt
-                                ConfTools.forceOverride(absolutePath.toFile());
-                                // 加载conf.production.txt
-                                ConfTools.forceOverride(absolutePath.toString().replace("conf.txt", "conf.production.txt"));
-                                // 通知观察者
-                                LOGGER.info("通知观察者配置文件已经发生变化");
-                                ConfManager.notifyObservers();
-                            }
-                            if(absolutePath.toString().endsWith("conf.production.txt")){
-                                // 加载conf.production.txt
-                                ConfTools.forceOverride(absolutePath.toFile());
-                                // 通知观察者
-                                LOGGER.info("通知观察者配置文件已经发生变化");
-                                ConfManager.notifyObservers();
+                            if(absolutePath.toString().endsWith("conf.txt")
+                                    || absolutePath.toString().endsWith("conf.production.txt")){
+                                scheduleReload(absolutePath);
                             }
                             break;
                     }
@@ -127,6 +131,58 @@ public class ConfWatcher {
             startWatch(conf);
         }
     }
+    /**
+     * 编辑器及部署工具保存一次文件通常产生多个变化事件
+     * 在最后一次变化之后等待 conf.watch.debounce.millis 毫秒再加载, 一次修改只加载一次并通知一次观察者
+     * @param absolutePath 发生变化的配置文件
+     */
+    private static synchronized void scheduleReload(Path absolutePath){
+        if(RELOAD_EXECUTOR_SERVICE == null){
+            return;
+        }
+        if(absolutePath.toString().endsWith("conf.txt")){
+            pendingConf = absolutePath;
+        }else{
+            pendingProductionConf = absolutePath;
+        }
+        if(pendingReload != null){
+            pendingReload.cancel(false);
+        }
+        int debounceMillis = Math.max(0, DEBOUNCE_MILLIS.get());
+        pendingReload = RELOAD_EXECUTOR_SERVICE.schedule(ConfWatcher::reload, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * 加载发生变化的配置文件, 只把值发生变化的配置项通知给观察者
+     */
+    private static void reload(){
+        Path conf;
+        Path productionConf;
+        synchronized (ConfWatcher.class){
+            conf = pendingConf;
+            productionConf = pendingProductionConf;
+            pendingConf = null;
+            pendingProductionConf = null;
+            pendingReload = null;
+        }
+        Map<String, String> before = ConfTools.snapshot();
+        if(conf != null){
+            // 加载conf.txt
+            ConfTools.forceOverride(conf.toFile());
+            // 加载conf.production.txt
+            ConfTools.forceOverride(conf.toString().replace("conf.txt", "conf.production.txt"));
+        }else if(productionConf != null){
+            // 加载conf.production.txt
+            ConfTools.forceOverride(productionConf.toFile());
+        }
+        Set<String> changedKeys = ConfManager.changedKeys(before, ConfTools.snapshot());
+        if(changedKeys.isEmpty()){
+            LOGGER.info("配置项没有变化, 不通知观察者");
+            return;
+        }
+        // 通知观察者
+        LOGGER.info("通知观察者配置文件已经发生变化: {}", changedKeys);
+        ConfManager.notifyObservers(changedKeys);
+    }
     private static void registerConf(Path path) throws IOException {
         LOGGER.debug("开始监控配置文件:" + path);
         WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
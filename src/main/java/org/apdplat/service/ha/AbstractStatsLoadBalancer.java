@@ -0,0 +1,158 @@
+package org.apdplat.service.ha;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按后端服务统计在途调用数及耗时的指数加权移动平均(EWMA)
+ * EWMA随时间衰减: 新样本的权重取决于距上一个样本的时间, 长时间没有样本时EWMA逐渐衰减到所有后端服务的平均值,
+ * 这样一度变慢而不再被选中的后端服务过一段时间后会重新获得调用, 有机会证明自己已经恢复,
+ * 而新加入或者长时间空闲的后端服务也不会因为EWMA接近0而吸走所有流量
+ * 失败调用的耗时往往很短(如连接被拒绝, 服务端错误), 按其它后端服务平均EWMA的若干倍记入, 快速失败的后端服务不会因此获得更多调用
+ */
+public abstract class AbstractStatsLoadBalancer<T> implements LoadBalancer<T> {
+    // 衰减时间常数
+    private static final double DECAY_NANOS = 1_000_000_000d;
+    // 所有后端服务都没有样本时的EWMA, 此时各个后端服务的EWMA相同, 只按在途调用数比较
+    private static final double DEFAULT_EWMA_NANOS = 1_000_000d;
+    // 失败调用记入的耗时至少为其它后端服务平均EWMA的这个倍数
+    private static final double FAILURE_PENALTY = 5d;
+
+    private final Map<T, Stats> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void onStart(T backend) {
+        stats(backend).inFlight.incrementAndGet();
+    }
+
+    /**
+     * 后端服务已经移除时什么也不做, 不重新创建它的统计
+     * 失败调用的耗时不少于其它后端服务平均EWMA的FAILURE_PENALTY倍
+     */
+    @Override
+    public void onComplete(T backend, long costNanos, boolean success) {
+        Stats s = stats.get(backend);
+        if(s == null){
+            return;
+        }
+        s.inFlight.decrementAndGet();
+        s.update(success ? costNanos : Math.max(costNanos, FAILURE_PENALTY * othersMeanEwma(s)));
+    }
+
+    @Override
+    public void remove(T backend) {
+        stats.remove(backend);
+    }
+
+    @Override
+    public String getStatus(T backend) {
+        Stats s = stats.get(backend);
+        if(s == null){
+            return "";
+        }
+        double ewma = s.lastEwma();
+        return "在途调用数: " + s.inFlight.get() + ", 平均耗时(EWMA): " + (Double.isNaN(ewma) ? "无样本" : (long) ewma / 1000 + " 微秒");
+    }
+
+    protected int inFlight(T backend){
+        Stats s = stats.get(backend);
+        return s == null ? 0 : s.inFlight.get();
+    }
+
+    /**
+     * 后端服务的耗时EWMA, 没有样本时为defaultNanos, 长时间没有样本时衰减到defaultNanos
+     * @param backend
+     * @param now
+     * @param defaultNanos 通常为meanEwma
+     * @return
+     */
+    protected double ewma(T backend, long now, double defaultNanos){
+        Stats s = stats.get(backend);
+        return s == null ? defaultNanos : s.ewma(now, defaultNanos);
+    }
+
+    /**
+     * 有样本的后端服务最近一次EWMA的平均值, 都没有样本时返回固定的默认值
+     * @param backends
+     * @return
+     */
+    protected double meanEwma(List<T> backends){
+        double sum = 0;
+        int count = 0;
+        for(int i=0; i<backends.size(); i++){
+            Stats s = stats.get(backends.get(i));
+            if(s == null){
+                continue;
+            }
+            double ewma = s.lastEwma();
+            if(!Double.isNaN(ewma)){
+                sum += ewma;
+                count++;
+            }
+        }
+        return count == 0 || sum <= 0 ? DEFAULT_EWMA_NANOS : sum / count;
+    }
+
+    /**
+     * 除了指定的后端服务以外, 有样本的后端服务最近一次EWMA的平均值, 都没有样本时返回固定的默认值
+     * 不包括指定的后端服务, 连续失败时惩罚不会自我放大
+     * @param self
+     * @return
+     */
+    private double othersMeanEwma(Stats self){
+        double sum = 0;
+        int count = 0;
+        for(Stats s : stats.values()){
+            if(s == self){
+                continue;
+            }
+            double ewma = s.lastEwma();
+            if(!Double.isNaN(ewma)){
+                sum += ewma;
+                count++;
+            }
+        }
+        return count == 0 || sum <= 0 ? DEFAULT_EWMA_NANOS : sum / count;
+    }
+
+    private Stats stats(T backend){
+        return stats.computeIfAbsent(backend, b -> new Stats());
+    }
+
+    private static final class Stats {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private boolean sampled;
+        private double ewmaNanos;
+        private long lastUpdate;
+
+        private synchronized void update(double costNanos){
+            long now = System.nanoTime();
+            if(!sampled){
+                // 第一个样本直接作为EWMA
+                ewmaNanos = costNanos;
+                sampled = true;
+            }else {
+                double w = Math.exp(-(now - lastUpdate) / DECAY_NANOS);
+                ewmaNanos = ewmaNanos * w + costNanos * (1 - w);
+            }
+            lastUpdate = now;
+        }
+
+        private synchronized double ewma(long now, double defaultNanos){
+            if(!sampled){
+                return defaultNanos;
+            }
+            double w = Math.exp(-(now - lastUpdate) / DECAY_NANOS);
+            return ewmaNanos * w + defaultNanos * (1 - w);
+        }
+
+        /**
+         * @return 最近一次更新后的EWMA, 没有样本时返回NaN
+         */
+        private synchronized double lastEwma(){
+            return sampled ? ewmaNanos : Double.NaN;
+        }
+    }
+}
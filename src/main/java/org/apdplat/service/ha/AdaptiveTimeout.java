@@ -0,0 +1,114 @@
+package org.apdplat.service.ha;
+
+import org.apdplat.service.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 自适应超时
+ * 每个后端服务的超时时间为最近一段时间内成功调用耗时的某个百分位乘以倍数, 并限制在下限和上限之间
+ * 响应快的后端服务卡住时能尽快失败, 而不是一直等到全局超时
+ * 只统计成功调用的耗时, 超时失败不会反过来拉高超时时间, 整个窗口内成功调用太少时恢复默认超时时间
+ */
+public class AdaptiveTimeout<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveTimeout.class);
+    // 滚动窗口包含的刷新次数, 每秒刷新一次时为最近10秒
+    private static final int WINDOW = 10;
+    // 窗口内的样本太少时百分位没有意义
+    private static final int MIN_SAMPLES = 20;
+
+    private final Map<T, Window> windows = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled;
+    private volatile int percentile = 99;
+    private volatile int multiplierPercent = 300;
+    private volatile int minMillis = 50;
+    private volatile int maxMillis = 1000;
+
+    /**
+     * 配置不正确时记录错误并保留原来的配置
+     * @param enabled
+     * @param percentile 百分位, 如 99
+     * @param multiplierPercent 倍数的百分比, 如 300 表示3倍
+     * @param minMillis 超时时间下限
+     * @param maxMillis 超时时间上限
+     */
+    public void configure(boolean enabled, int percentile, int multiplierPercent, int minMillis, int maxMillis){
+        if(percentile <= 0 || percentile > 100 || multiplierPercent <= 0 || minMillis <= 0 || minMillis > maxMillis){
+            LOGGER.error("自适应超时配置不正确, 保留原来的配置, 百分位必须在(0, 100]之间, 倍数必须大于0, 下限必须大于0且不超过上限: "
+                    + percentile + ", " + multiplierPercent + ", " + minMillis + ", " + maxMillis);
+            return;
+        }
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.multiplierPercent = multiplierPercent;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        // 配置变化后重新积累样本
+        windows.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 后端服务当前的超时时间
+     * @param backend
+     * @param defaultTimeout 未启用或者样本不足时的超时时间
+     * @return
+     */
+    public int getTimeout(T backend, int defaultTimeout){
+        if(!enabled){
+            return defaultTimeout;
+        }
+        Window window = windows.get(backend);
+        if(window == null || window.timeout == 0){
+            return defaultTimeout;
+        }
+        return window.timeout;
+    }
+
+    /**
+     * 根据最近的耗时分布重新计算超时时间, 由后台线程每秒调用一次
+     * @param latencies 后端服务及其耗时直方图
+     */
+    public void refresh(Map<T, LatencyHistogram> latencies){
+        if(!enabled){
+            return;
+        }
+        latencies.forEach((backend, histogram) ->
+                windows.computeIfAbsent(backend, b -> new Window()).update(histogram.snapshot()));
+    }
+
+    public String getStatus(){
+        return "自适应超时: 最近" + WINDOW + "秒成功调用耗时的p" + percentile + " x " + multiplierPercent + "%"
+                + ", 限制在 " + minMillis + "~" + maxMillis + " 毫秒之间";
+    }
+
+    private class Window {
+        private final ArrayDeque<LatencyHistogram.Snapshot> snapshots = new ArrayDeque<>();
+        private volatile int timeout;
+
+        private void update(LatencyHistogram.Snapshot snapshot){
+            snapshots.addLast(snapshot);
+            if(snapshots.size() > WINDOW + 1){
+                snapshots.removeFirst();
+            }
+            LatencyHistogram.Snapshot recent = snapshot.since(snapshots.getFirst());
+            if(recent.getCount() < MIN_SAMPLES){
+                // 整个窗口内成功调用都很少, 比如后端服务变慢后调用全部超时, 恢复使用默认超时时间, 避免一直超时
+                if(snapshots.size() > WINDOW){
+                    timeout = 0;
+                }
+                return;
+            }
+            long millis = recent.getPercentileMicros(percentile) * multiplierPercent / 100 / 1000;
+            timeout = (int) Math.max(minMillis, Math.min(maxMillis, millis));
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.apdplat.service.ha;
+
+import org.apdplat.service.configration.ConfTools;
+import org.apdplat.service.metrics.RollingCounter;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 后端服务的熔断器
+ * CLOSED: 正常调用, 滚动窗口内失败率达到阈值或者连续失败次数达到阈值时熔断, 进入OPEN
+ * OPEN: 拒绝调用, 熔断时长过后由使用方调用halfOpen进入HALF_OPEN, 连续熔断时熔断时长指数增长
+ * HALF_OPEN: 放行少量真实调用试探, 全部成功则恢复CLOSED, 任何一次失败则再次熔断
+ * 状态变化通过Listener通知使用方, 使用方据此维护可用及不可用的后端服务列表
+ * 调用结果记入使用方提供的滚动计数器, 失败率从计数器的滚动窗口计算, 熔断器重建时计数器保留
+ */
+public class CircuitBreaker<T> {
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    public interface Listener<T> {
+        void onStateChange(CircuitBreaker<T> breaker, State from, State to);
+    }
+
+    private final T backend;
+    private final String name;
+    private final Settings settings;
+    private final Listener<T> listener;
+    private final RollingCounter calls;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger halfOpenPermits = new AtomicInteger();
+    private final AtomicInteger halfOpenSuccesses = new AtomicInteger();
+
+    private volatile State state = State.CLOSED;
+    private volatile long openMillis;
+    // 恢复正常时之前的调用记录不再计入失败率
+    private volatile long windowStartMillis;
+    private int trips;
+
+    /**
+     * @param backend
+     * @param name
+     * @param settings
+     * @param calls 后端服务的调用计数器
+     * @param listener
+     */
+    public CircuitBreaker(T backend, String name, Settings settings, RollingCounter calls, Listener<T> listener){
+        this.backend = backend;
+        this.name = name;
+        this.settings = settings;
+        this.calls = calls;
+        this.listener = listener;
+    }
+
+    public T getBackend() {
+        return backend;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * 本次熔断的时长
+     * @return
+     */
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * 调用前申请许可, HALF_OPEN状态下只放行有限的试探调用
+     * 获得许可的调用必须以onSuccess, onFailure或者onCancel之一结束
+     * @return
+     */
+    public boolean tryAcquire(){
+        State s = state;
+        if(s == State.CLOSED){
+            return true;
+        }
+        if(s == State.OPEN){
+            return false;
+        }
+        // 只在还有许可时扣减, 拒绝时不能把许可数减成负数, 否则onCancel归还的许可会被抵消
+        int permits;
+        do {
+            permits = halfOpenPermits.get();
+            if(permits <= 0){
+                return false;
+            }
+        } while (!halfOpenPermits.compareAndSet(permits, permits - 1));
+        return true;
+    }
+
+    public void onSuccess(){
+        record(true);
+        consecutiveFailures.set(0);
+        if(state == State.HALF_OPEN && halfOpenSuccesses.incrementAndGet() >= settings.halfOpenRequests){
+            close();
+        }
+    }
+
+    public void onFailure(){
+        record(false);
+        int failures = consecutiveFailures.incrementAndGet();
+        State s = state;
+        if(s == State.HALF_OPEN
+                || (s == State.CLOSED && (failures >= settings.consecutiveFailures || failureRateExceeded()))){
+            open();
+        }
+    }
+
+    /**
+     * 调用被取消或者因与后端服务无关的原因失败, 不计入统计, HALF_OPEN状态下归还试探许可
+     */
+    public void onCancel(){
+        if(state == State.HALF_OPEN){
+            halfOpenPermits.incrementAndGet();
+        }
+    }
+
+    /**
+     * 熔断时长已过, 进入半开状态
+     */
+    public void halfOpen(){
+        synchronized (this) {
+            if (state != State.OPEN) {
+                return;
+            }
+            halfOpenSuccesses.set(0);
+            halfOpenPermits.set(settings.halfOpenRequests);
+            state = State.HALF_OPEN;
+        }
+        listener.onStateChange(this, State.OPEN, State.HALF_OPEN);
+    }
+
+    /**
+     * 恢复正常, 熔断时长重新从初始值开始增长
+     */
+    public void close(){
+        State from;
+        synchronized (this) {
+            from = state;
+            if (from == State.CLOSED) {
+                return;
+            }
+            trips = 0;
+            consecutiveFailures.set(0);
+            windowStartMillis = System.currentTimeMillis();
+            state = State.CLOSED;
+        }
+        listener.onStateChange(this, from, State.CLOSED);
+    }
+
+    public String getStatus(){
+        long[] counts = windowCounts();
+        long failures = counts[1];
+        long total = counts[0] + failures;
+        StringBuilder status = new StringBuilder();
+        status.append("熔断器: ").append(state)
+                .append(", 最近").append(settings.windowMillis / 1000).append("秒调用 ").append(total).append(" 次")
+                .append(", 失败率 ").append(total == 0 ? 0 : failures * 100 / total).append("%");
+        if(state == State.OPEN){
+            status.append(", 熔断时长 ").append(openMillis).append(" 毫秒");
+        }
+        return status.toString();
+    }
+
+    private void open(){
+        State from;
+        synchronized (this) {
+            from = state;
+            if (from == State.OPEN) {
+                return;
+            }
+            openMillis = Math.min(settings.maxOpenMillis, settings.openMillis << Math.min(trips, 30));
+            trips++;
+            state = State.OPEN;
+        }
+        listener.onStateChange(this, from, State.OPEN);
+    }
+
+    private void record(boolean success){
+        calls.record(success);
+    }
+
+    private boolean failureRateExceeded(){
+        long[] counts = windowCounts();
+        long failures = counts[1];
+        long total = counts[0] + failures;
+        return total >= settings.minRequests && failures * 100 >= total * settings.failureRatePercent;
+    }
+
+    /**
+     * 滚动窗口内的调用次数
+     * @return 成功次数, 失败次数
+     */
+    private long[] windowCounts(){
+        return calls.counts(settings.windowMillis, windowStartMillis);
+    }
+
+    /**
+     * 熔断器配置
+     */
+    public static class Settings {
+        private final int failureRatePercent;
+        private final int minRequests;
+        private final int consecutiveFailures;
+        private final long windowMillis;
+        private final long openMillis;
+        private final long maxOpenMillis;
+        private final int halfOpenRequests;
+
+        public Settings(int failureRatePercent, int minRequests, int consecutiveFailures, long windowMillis,
+                        long openMillis, long maxOpenMillis, int halfOpenRequests) {
+            this.failureRatePercent = failureRatePercent;
+            this.minRequests = minRequests;
+            this.consecutiveFailures = consecutiveFailures;
+            this.windowMillis = windowMillis;
+            this.openMillis = openMillis;
+            this.maxOpenMillis = maxOpenMillis;
+            this.halfOpenRequests = halfOpenRequests;
+        }
+
+        /**
+         * 从配置文件加载
+         * @param prefix 配置项前缀, 如 search.api.breaker.
+         * @return
+         */
+        public static Settings load(String prefix){
+            return new Settings(
+                    ConfTools.getInt(prefix + "failure.rate.percent", 50),
+                    ConfTools.getInt(prefix + "min.requests", 20),
+                    ConfTools.getInt(prefix + "consecutive.failures", 5),
+                    Math.min(ConfTools.getInt(prefix + "window.seconds", 10) * 1000L, RollingCounter.MAX_WINDOW_MILLIS),
+                    ConfTools.getInt(prefix + "open.millis", 1000),
+                    ConfTools.getInt(prefix + "max.open.millis", 60000),
+                    ConfTools.getInt(prefix + "half.open.requests", 3));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings that = (Settings) o;
+            return failureRatePercent == that.failureRatePercent
+                    && minRequests == that.minRequests
+                    && consecutiveFailures == that.consecutiveFailures
+                    && windowMillis == that.windowMillis
+                    && openMillis == that.openMillis
+                    && maxOpenMillis == that.maxOpenMillis
+                    && halfOpenRequests == that.halfOpenRequests;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(failureRatePercent, minRequests, consecutiveFailures, windowMillis,
+                    openMillis, maxOpenMillis, halfOpenRequests);
+        }
+
+        @Override
+        public String toString() {
+            return "失败率阈值: " + failureRatePercent + "%, 最少调用次数: " + minRequests
+                    + ", 连续失败次数阈值: " + consecutiveFailures + ", 滚动窗口: " + windowMillis + " 毫秒"
+                    + ", 熔断时长: " + openMillis + "~" + maxOpenMillis + " 毫秒, 半开试探调用数: " + halfOpenRequests;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.apdplat.service.ha;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每个后端服务的自适应并发上限(舱壁), 按耗时调整上限(AIMD)
+ * 最近耗时(成功调用耗时的EWMA, 个别慢调用不会触发)没有超过基准耗时的容忍倍数时, 每次成功调用把上限增加 1/上限, 一个上限的调用之后上限加1
+ * 最近耗时超过容忍倍数或者调用失败时, 上限乘以退避比例, 每个基准耗时(至少10毫秒)内最多减少一次, 避免一批慢调用把上限减到最小值
+ * 基准耗时为观察到的最小耗时, 排队造成的耗时不会抬高基准
+ * 上限已经减到最小值, 整个采样窗口的耗时仍然超过容忍倍数时, 说明后端服务本身变慢了, 以窗口内的最小耗时作为新的基准, 上限重新增长
+ * 在途调用数达到上限时拒绝调用, 调用方可以转到其它后端服务, 一个变慢的后端服务不会占满调用方的线程
+ * 未启用时只统计在途调用数, 不拒绝调用
+ */
+public class ConcurrencyLimiter<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+    // 采样窗口达到这么多次成功调用或者这么长时间后检查基准耗时
+    private static final int WINDOW_SAMPLES = 500;
+    private static final long WINDOW_NANOS = 5_000_000_000L;
+    // 基准耗时很小时, 这个范围内的波动不视为变慢
+    private static final long SLACK_NANOS = 1_000_000;
+    // 两次减少上限的最小间隔, 基准耗时更长时以基准耗时为准
+    private static final long MIN_DECREASE_INTERVAL_NANOS = 10_000_000;
+    // 最近耗时EWMA中新样本的权重
+    private static final double RECENT_WEIGHT = 0.1;
+
+    private final Map<T, Limit> limits = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled = false;
+    private volatile int initialLimit = 20;
+    private volatile int minLimit = 1;
+    private volatile int maxLimit = 200;
+    private volatile int tolerancePercent = 200;
+    private volatile int backoffPercent = 90;
+
+    /**
+     * 配置不正确时记录错误并保留原来的配置
+     * @param enabled
+     * @param initialLimit 后端服务的初始并发上限
+     * @param minLimit 并发上限的最小值
+     * @param maxLimit 并发上限的最大值
+     * @param tolerancePercent 耗时超过基准耗时的这个百分比时减少上限, 如200为2倍
+     * @param backoffPercent 减少上限时乘以的百分比, 如90为减少10%
+     */
+    public void configure(boolean enabled, int initialLimit, int minLimit, int maxLimit, int tolerancePercent, int backoffPercent){
+        if(minLimit <= 0 || maxLimit < minLimit || tolerancePercent < 100 || backoffPercent <= 0 || backoffPercent >= 100){
+            LOGGER.error("并发上限配置不正确, 保留原来的配置, 最小值必须大于0且不大于最大值, 容忍百分比不小于100, 退避百分比在0到100之间: "
+                    + minLimit + ", " + maxLimit + ", " + tolerancePercent + ", " + backoffPercent);
+            return;
+        }
+        this.initialLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerancePercent = tolerancePercent;
+        this.backoffPercent = backoffPercent;
+        this.enabled = enabled;
+        for(Limit limit : limits.values()){
+            limit.clamp(minLimit, maxLimit);
+        }
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * 调用前申请许可, 获得许可的调用必须以onComplete或者onCancel之一结束
+     * @param backend
+     * @return 在途调用数已达上限时返回false, 调用方应当转到其它后端服务或者直接拒绝
+     */
+    public boolean tryAcquire(T backend){
+        Limit limit = limit(backend);
+        if(!enabled){
+            limit.inFlight.incrementAndGet();
+            return true;
+        }
+        while (true){
+            int inFlight = limit.inFlight.get();
+            if(inFlight >= limit.limit){
+                limit.rejectedTimes.increment();
+                return false;
+            }
+            if(limit.inFlight.compareAndSet(inFlight, inFlight + 1)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 调用结束, 归还许可并根据耗时调整上限
+     * 后端服务已经移除时什么也不做, 不重新创建它的上限
+     * @param backend
+     * @param costNanos
+     * @param success 超时及连接错误为失败, 后端服务返回的业务错误为成功
+     */
+    public void onComplete(T backend, long costNanos, boolean success){
+        Limit limit = limits.get(backend);
+        if(limit == null){
+            return;
+        }
+        int inFlight = limit.inFlight.getAndDecrement();
+        if(enabled) {
+            limit.update(costNanos, success, inFlight, minLimit, maxLimit, tolerancePercent, backoffPercent);
+        }
+    }
+
+    /**
+     * 调用被取消或者因与后端服务无关的原因失败, 只归还许可
+     * 后端服务已经移除时什么也不做
+     * @param backend
+     */
+    public void onCancel(T backend){
+        Limit limit = limits.get(backend);
+        if(limit != null){
+            limit.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * 后端服务已经移除, 不再保留它的上限, 之后结束的在途调用不再计数
+     * @param backend
+     */
+    public void remove(T backend){
+        limits.remove(backend);
+    }
+
+    public String getStatus(T backend){
+        Limit limit = limits.get(backend);
+        if(limit == null){
+            return "并发上限: " + (enabled ? initialLimit : "未启用");
+        }
+        return "并发上限: " + (enabled ? limit.limit : "未启用")
+                + ", 在途 " + limit.inFlight.get()
+                + ", 基准耗时 " + limit.baselineNanos / 1000 + " 微秒"
+                + ", 最近耗时 " + (long) limit.recentNanos / 1000 + " 微秒"
+                + ", 超过上限被拒绝 " + limit.rejectedTimes.sum() + " 次";
+    }
+
+    private Limit limit(T backend){
+        Limit limit = limits.get(backend);
+        if(limit != null){
+            return limit;
+        }
+        // 创建的lambda引用了initialLimit, 只在第一次调用时使用
+        return limits.computeIfAbsent(backend, b -> new Limit(initialLimit));
+    }
+
+    private static class Limit {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder rejectedTimes = new LongAdder();
+        private volatile int limit;
+        private volatile long baselineNanos;
+        private volatile double recentNanos;
+        // 精确的上限, 每次成功增加 1/上限
+        private double estimate;
+        private long windowMinNanos = Long.MAX_VALUE;
+        private int windowSamples;
+        private long lastDecrease;
+        private long windowStart = System.nanoTime();
+
+        private Limit(int initialLimit) {
+            this.limit = initialLimit;
+            this.estimate = initialLimit;
+        }
+
+        private synchronized void update(long costNanos, boolean success, int inFlight,
+                                         int minLimit, int maxLimit, int tolerancePercent, int backoffPercent){
+            long now = System.nanoTime();
+            if(success){
+                windowMinNanos = Math.min(windowMinNanos, costNanos);
+                if(++windowSamples >= WINDOW_SAMPLES || now - windowStart >= WINDOW_NANOS){
+                    // 只有上限已经是最小值时基准才可以变大
+                    if(limit <= minLimit || windowMinNanos < baselineNanos) {
+                        baselineNanos = windowMinNanos;
+                    }
+                    windowMinNanos = Long.MAX_VALUE;
+                    windowSamples = 0;
+                    windowStart = now;
+                }else if(baselineNanos == 0 || costNanos < baselineNanos){
+                    baselineNanos = costNanos;
+                }
+                recentNanos = recentNanos == 0 ? costNanos : recentNanos * (1 - RECENT_WEIGHT) + costNanos * RECENT_WEIGHT;
+                if(recentNanos * 100 <= baselineNanos * tolerancePercent || recentNanos <= baselineNanos + SLACK_NANOS){
+                    // 在途调用数远低于上限时耗时正常不能说明可以承受更高的并发
+                    if(inFlight * 2 >= limit) {
+                        estimate = Math.min(maxLimit, estimate + 1 / estimate);
+                        limit = (int) estimate;
+                    }
+                    return;
+                }
+            }
+            if(now - lastDecrease >= Math.max(baselineNanos, MIN_DECREASE_INTERVAL_NANOS)){
+                lastDecrease = now;
+                estimate = Math.max(minLimit, estimate * backoffPercent / 100);
+                limit = (int) estimate;
+            }
+        }
+
+        private synchronized void clamp(int minLimit, int maxLimit){
+            estimate = Math.max(minLimit, Math.min(maxLimit, estimate));
+            limit = (int) estimate;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.apdplat.service.ha;
+
+import redis.clients.util.Hashing;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 一致性哈希环, 不可变
+ * 每个后端服务在环上有多个虚拟节点, KEY属于顺时针方向遇到的第一个虚拟节点所属的后端服务
+ * 后端服务不可用时跳过它的虚拟节点, 只有它负责的KEY转移到环上的后继节点, 其它KEY的归属不变
+ * 虚拟节点的位置只由后端服务的名称决定, 名称不变时重新构造的环与原来的环相同
+ */
+public class ConsistentHashRing<T> {
+    private static final Hashing HASHING = Hashing.MURMUR_HASH;
+
+    private final long[] hashes;
+    private final Object[] owners;
+    // 每个后端服务负责的哈希空间比例
+    private final Map<T, Double> shares = new HashMap<>();
+
+    /**
+     * @param backends
+     * @param namer 后端服务的名称, 如 ip:port
+     * @param virtualNodes 每个后端服务的虚拟节点数
+     */
+    public ConsistentHashRing(List<T> backends, Function<T, String> namer, int virtualNodes){
+        if(virtualNodes <= 0){
+            throw new IllegalArgumentException("虚拟节点数必须大于0: "+virtualNodes);
+        }
+        TreeMap<Long, T> ring = new TreeMap<>();
+        for(T backend : backends){
+            String name = namer.apply(backend);
+            for(int i=0; i<virtualNodes; i++){
+                ring.put(HASHING.hash(name + "#" + i), backend);
+            }
+        }
+        hashes = new long[ring.size()];
+        owners = new Object[ring.size()];
+        int i = 0;
+        for(Map.Entry<Long, T> entry : ring.entrySet()){
+            hashes[i] = entry.getKey();
+            owners[i] = entry.getValue();
+            i++;
+        }
+        computeShares();
+    }
+
+    /**
+     * 顺时针查找第一个可用的后端服务
+     * @param key
+     * @param usable 后端服务是否可用
+     * @return 没有可用的后端服务时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public T select(String key, Predicate<T> usable){
+        if(hashes.length == 0){
+            return null;
+        }
+        int index = Arrays.binarySearch(hashes, HASHING.hash(key));
+        if(index < 0){
+            index = -index - 1;
+        }
+        Object skipped = null;
+        for(int n=0; n<hashes.length; n++){
+            T owner = (T) owners[(index + n) % hashes.length];
+            // 相邻的虚拟节点经常属于同一个后端服务, 不重复判断
+            if(owner == skipped){
+                continue;
+            }
+            if(usable.test(owner)){
+                return owner;
+            }
+            skipped = owner;
+        }
+        return null;
+    }
+
+    public String getStatus(T backend){
+        Double share = shares.get(backend);
+        return "分片占比: " + (share == null ? 0 : Math.round(share * 1000) / 10.0) + "%";
+    }
+
+    @SuppressWarnings("unchecked")
+    private void computeShares(){
+        for(int i=0; i<hashes.length; i++){
+            // 从上一个虚拟节点到当前虚拟节点之间的KEY属于当前虚拟节点, 第一个虚拟节点负责跨过环起点的区间
+            double arc = i == 0
+                    ? Math.pow(2, 64) - ((double) hashes[hashes.length - 1] - hashes[0])
+                    : (double) hashes[i] - hashes[i - 1];
+            shares.merge((T) owners[i], arc / Math.pow(2, 64), Double::sum);
+        }
+    }
+}
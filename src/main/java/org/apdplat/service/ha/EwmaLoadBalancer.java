@@ -0,0 +1,48 @@
+package org.apdplat.service.ha;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 选择负载最小的后端服务, 负载 = 耗时EWMA * (在途调用数 + 1)
+ * 变慢的后端服务在彻底失败之前就会逐渐失去流量
+ * 没有样本的后端服务按所有后端服务的平均EWMA计算负载, 新加入的后端服务不会因为EWMA为0而吸走所有流量
+ */
+public class EwmaLoadBalancer<T> extends AbstractStatsLoadBalancer<T> {
+    // 负载相同时从不同的位置开始比较, 避免总是选中第一个
+    private final AtomicInteger offset = new AtomicInteger();
+
+    @Override
+    public T select(List<T> backends) {
+        return select(backends, null);
+    }
+
+    /**
+     * 按下标遍历快照, 跳过被排除的后端服务
+     */
+    @Override
+    public T select(List<T> backends, Predicate<? super T> excluded) {
+        int size = backends.size();
+        if (size == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        double mean = meanEwma(backends);
+        int start = (offset.getAndIncrement() & Integer.MAX_VALUE) % size;
+        T best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for(int i=0; i<size; i++){
+            T backend = backends.get((start + i) % size);
+            if(excluded != null && excluded.test(backend)){
+                continue;
+            }
+            double load = ewma(backend, now, mean) * (inFlight(backend) + 1);
+            if(load < bestLoad){
+                bestLoad = load;
+                best = backend;
+            }
+        }
+        return best;
+    }
+}
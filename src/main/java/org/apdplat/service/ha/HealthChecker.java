@@ -0,0 +1,151 @@
+package org.apdplat.service.ha;
+
+import org.apdplat.service.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 后端服务健康检查
+ * 由后台线程定时探测每个后端服务, 连续失败达到fall次标记为不健康, 连续成功达到rise次恢复健康, 状态变化时通知监听器
+ * 探测不在调用路径上, 调用路径不需要再校验连接
+ * 没有探测过的后端服务视为健康
+ */
+public class HealthChecker<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HealthChecker.class);
+
+    /**
+     * 探测一个后端服务
+     */
+    public interface Probe<T> {
+        /**
+         * @param backend
+         * @throws Exception 探测失败
+         */
+        void probe(T backend) throws Exception;
+    }
+
+    /**
+     * 健康状态变化的通知
+     */
+    public interface Listener<T> {
+        void onHealthChange(T backend, boolean healthy);
+    }
+
+    private final Map<T, Health> healths = new ConcurrentHashMap<>();
+    private final Probe<T> probe;
+    private final Listener<T> listener;
+
+    private volatile int fall = 2;
+    private volatile int rise = 2;
+
+    public HealthChecker(Probe<T> probe, Listener<T> listener){
+        this.probe = probe;
+        this.listener = listener;
+    }
+
+    /**
+     * 配置不正确时记录错误并保留原来的配置
+     * @param fall 连续失败多少次标记为不健康
+     * @param rise 连续成功多少次恢复健康
+     */
+    public void configure(int fall, int rise){
+        if(fall <= 0 || rise <= 0){
+            LOGGER.error("健康检查配置不正确, 保留原来的配置, 连续失败及成功次数必须大于0: "+fall+", "+rise);
+            return;
+        }
+        this.fall = fall;
+        this.rise = rise;
+    }
+
+    /**
+     * 探测一次后端服务, 记录耗时及结果, 达到阈值时改变健康状态并通知监听器
+     * 同一个后端服务不应该被并发探测
+     * @param backend
+     * @return 本次探测是否成功
+     */
+    public boolean check(T backend){
+        Health health = healths.computeIfAbsent(backend, b -> new Health());
+        long start = System.nanoTime();
+        Throwable error = null;
+        try {
+            probe.probe(backend);
+        }catch (Throwable e){
+            error = e;
+        }
+        health.latencies.record(System.nanoTime() - start);
+        Boolean changed = health.update(error, fall, rise);
+        if(changed != null){
+            listener.onHealthChange(backend, changed);
+        }
+        return error == null;
+    }
+
+    public boolean isHealthy(T backend){
+        Health health = healths.get(backend);
+        return health == null || health.healthy;
+    }
+
+    public void clear(){
+        healths.clear();
+    }
+
+    /**
+     * 后端服务已经移除, 不再保留它的健康状态
+     * @param backend
+     */
+    public void remove(T backend){
+        healths.remove(backend);
+    }
+
+    public String getStatus(T backend){
+        Health health = healths.get(backend);
+        if(health == null){
+            return "健康检查: 未探测";
+        }
+        Throwable error = health.lastError;
+        return "健康检查: " + (health.healthy ? "健康" : "不健康")
+                + ", 探测成功 " + health.successTimes.sum() + " 次"
+                + ", 失败 " + health.failureTimes.sum() + " 次"
+                + ", 探测" + health.latencies.snapshot()
+                + (error == null ? "" : ", 最近一次失败: " + error);
+    }
+
+    private static class Health {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder successTimes = new LongAdder();
+        private final LongAdder failureTimes = new LongAdder();
+        private volatile boolean healthy = true;
+        private volatile Throwable lastError;
+        private int consecutiveSuccesses;
+        private int consecutiveFailures;
+
+        /**
+         * @return 健康状态变化时返回新的状态, 否则返回null
+         */
+        private synchronized Boolean update(Throwable error, int fall, int rise){
+            if(error == null){
+                successTimes.increment();
+                consecutiveFailures = 0;
+                consecutiveSuccesses++;
+                if(!healthy && consecutiveSuccesses >= rise){
+                    healthy = true;
+                    return true;
+                }
+            }else{
+                failureTimes.increment();
+                lastError = error;
+                consecutiveSuccesses = 0;
+                consecutiveFailures++;
+                if(healthy && consecutiveFailures >= fall){
+                    healthy = false;
+                    return false;
+                }
+            }
+            return null;
+        }
+    }
+}
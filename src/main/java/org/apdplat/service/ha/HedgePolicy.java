@@ -0,0 +1,144 @@
+package org.apdplat.service.ha;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 对冲请求策略
+ * 首个请求在对冲延迟内没有返回时, 把同样的请求发给另一个副本, 先返回者胜出
+ * 对冲延迟可以是固定值, 也可以是最近请求耗时的某个百分位
+ * 对冲请求受预算限制: 每个主请求积累budgetPercent%个对冲请求的额度, 额度不足时不对冲, 避免对冲放大后端负载
+ */
+public class HedgePolicy {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HedgePolicy.class);
+    // 保留最近请求耗时的样本数
+    private static final int SAMPLE_SIZE = 1024;
+    // 对冲额度的单位, 一个对冲请求消耗的额度
+    private static final long HEDGE_COST = 100;
+    // 最多积累的对冲请求数, 防止空闲期积累的额度被突发流量一次性用光
+    private static final long MAX_HEDGES = 10;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLE_SIZE);
+    private final AtomicInteger sampleIndex = new AtomicInteger();
+    private final AtomicLong budget = new AtomicLong();
+    private final AtomicLong hedgeTimes = new AtomicLong();
+    private final AtomicLong hedgeWinTimes = new AtomicLong();
+    private final AtomicLong budgetExhaustedTimes = new AtomicLong();
+
+    private volatile boolean enabled;
+    private volatile long fixedDelayMillis = 50;
+    private volatile int percentile;
+    private volatile int budgetPercent = 5;
+    private volatile long delayMillis = fixedDelayMillis;
+
+    /**
+     * 配置不正确时记录错误并保留原来的配置
+     * @param enabled
+     * @param fixedDelayMillis 固定的对冲延迟, 必须大于0
+     * @param percentile 对冲延迟取最近请求耗时的百分位, 在[0, 100)之间, 为0时使用固定延迟
+     * @param budgetPercent 对冲请求额度占主请求的百分比, 不能小于0
+     */
+    public void configure(boolean enabled, long fixedDelayMillis, int percentile, int budgetPercent){
+        if(fixedDelayMillis <= 0 || percentile < 0 || percentile >= 100 || budgetPercent < 0){
+            LOGGER.error("对冲请求配置不正确, 保留原来的配置, 固定延迟必须大于0, 百分位必须在[0, 100)之间, 额度百分比不能小于0: "
+                    + fixedDelayMillis + ", " + percentile + ", " + budgetPercent);
+            return;
+        }
+        this.enabled = enabled;
+        this.fixedDelayMillis = fixedDelayMillis;
+        this.percentile = percentile;
+        this.budgetPercent = budgetPercent;
+        refresh();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 当前的对冲延迟
+     * @return
+     */
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * 记录一个成功请求的耗时
+     * @param costMillis
+     */
+    public void record(long costMillis){
+        samples.lazySet((sampleIndex.getAndIncrement() & Integer.MAX_VALUE) % SAMPLE_SIZE, costMillis);
+    }
+
+    /**
+     * 每个主请求调用一次, 积累对冲额度
+     */
+    public void onRequest(){
+        while (true){
+            long current = budget.get();
+            long next = Math.min(current + budgetPercent, MAX_HEDGES * HEDGE_COST);
+            if(current == next || budget.compareAndSet(current, next)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * 申请发送一个对冲请求
+     * @return 额度不足时返回false
+     */
+    public boolean tryHedge(){
+        while (true){
+            long current = budget.get();
+            if(current < HEDGE_COST){
+                budgetExhaustedTimes.incrementAndGet();
+                return false;
+            }
+            if(budget.compareAndSet(current, current - HEDGE_COST)){
+                hedgeTimes.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 对冲请求先于主请求返回
+     */
+    public void onHedgeWin(){
+        hedgeWinTimes.incrementAndGet();
+    }
+
+    /**
+     * 根据最近的请求耗时重新计算对冲延迟, 由后台线程定期调用, 避免在请求路径上排序
+     */
+    public void refresh(){
+        if(percentile == 0){
+            delayMillis = fixedDelayMillis;
+            return;
+        }
+        int count = Math.min(sampleIndex.get() & Integer.MAX_VALUE, SAMPLE_SIZE);
+        // 样本太少时百分位没有意义, 使用固定延迟
+        if(count < 100){
+            delayMillis = fixedDelayMillis;
+            return;
+        }
+        long[] values = new long[count];
+        for(int i=0; i<count; i++){
+            values[i] = samples.get(i);
+        }
+        Arrays.sort(values);
+        delayMillis = Math.max(1, values[(int)((long)count * percentile / 100)]);
+    }
+
+    public String getStatus(){
+        return "对冲延迟: " + delayMillis + " 毫秒, 对冲次数: " + hedgeTimes.get()
+                + ", 对冲胜出次数: " + hedgeWinTimes.get()
+                + ", 额度不足未对冲次数: " + budgetExhaustedTimes.get();
+    }
+}
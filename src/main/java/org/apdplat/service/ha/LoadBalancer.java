@@ -0,0 +1,77 @@
+package org.apdplat.service.ha;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * 负载均衡策略, 从可用的后端服务中选择一个
+ * 调用方在调用后端前后分别通知onStart和onComplete, 策略可以据此统计在途调用数及耗时
+ * 后端服务列表是不可变的快照(见LoadBalancers.snapshot), 选择时不复制, 不加锁
+ */
+public interface LoadBalancer<T> {
+    /**
+     * 选择一个后端服务
+     * @param backends 可用的后端服务的快照
+     * @return 没有可用后端服务时返回null
+     */
+    T select(List<T> backends);
+
+    /**
+     * 选择一个没有被排除的后端服务, 用于失败转移等不能再选择某些后端服务的场合, 不需要复制后端服务列表
+     * 默认先由策略重新选择, 选中的都被排除时按顺序取第一个没有被排除的后端服务
+     * @param backends 可用的后端服务的快照
+     * @param excluded 被排除的后端服务, 为null时不排除
+     * @return 没有可以选择的后端服务时返回null
+     */
+    default T select(List<T> backends, Predicate<? super T> excluded){
+        if(excluded == null){
+            return select(backends);
+        }
+        int size = backends.size();
+        for(int i=0; i<size; i++){
+            T backend = select(backends);
+            if(backend == null){
+                return null;
+            }
+            if(!excluded.test(backend)){
+                return backend;
+            }
+        }
+        for(int i=0; i<size; i++){
+            T backend = backends.get(i);
+            if(!excluded.test(backend)){
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 开始调用后端服务
+     * @param backend
+     */
+    default void onStart(T backend){}
+
+    /**
+     * 调用后端服务结束
+     * @param backend
+     * @param costNanos 调用耗时
+     * @param success 是否调用成功
+     */
+    default void onComplete(T backend, long costNanos, boolean success){}
+
+    /**
+     * 后端服务已经移除, 策略可以丢弃它的统计
+     * @param backend
+     */
+    default void remove(T backend){}
+
+    /**
+     * 状态信息
+     * @param backend
+     * @return
+     */
+    default String getStatus(T backend){
+        return "";
+    }
+}
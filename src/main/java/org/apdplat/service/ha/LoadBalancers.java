@@ -0,0 +1,53 @@
+package org.apdplat.service.ha;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 根据配置的名称创建负载均衡策略
+ * round-robin: 轮询, 默认策略
+ * ewma: 选择耗时EWMA与在途调用数乘积最小的后端服务
+ * p2c: 随机选择两个后端服务, 取在途调用数较少的一个
+ */
+public class LoadBalancers {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadBalancers.class);
+
+    private LoadBalancers(){}
+
+    /**
+     * 后端服务列表的不可变快照, 由数组支持, 按下标读取不加锁
+     * 后端服务列表变化时创建新的快照整体替换, 读取方总是看到一个完整的列表
+     * @param backends
+     * @param <T>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> snapshot(Collection<T> backends){
+        if(backends.isEmpty()){
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList((T[]) backends.toArray()));
+    }
+
+    public static <T> LoadBalancer<T> create(String name){
+        if(name == null){
+            return new RoundRobinLoadBalancer<>();
+        }
+        switch (name.trim()){
+            case "round-robin":
+                return new RoundRobinLoadBalancer<>();
+            case "ewma":
+                return new EwmaLoadBalancer<>();
+            case "p2c":
+                return new PowerOfTwoChoicesLoadBalancer<>();
+            default:
+                LOGGER.error("不支持的负载均衡策略: {}, 使用轮询策略", name);
+                return new RoundRobinLoadBalancer<>();
+        }
+    }
+}
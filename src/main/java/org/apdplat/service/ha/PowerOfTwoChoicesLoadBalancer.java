@@ -0,0 +1,60 @@
+package org.apdplat.service.ha;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * 随机选择两个后端服务, 取在途调用数较少的一个, 在途调用数相同时取耗时EWMA较小的一个
+ * 只比较两个候选者, 开销与后端服务数无关, 又能避免把调用集中到同一个后端服务上
+ */
+public class PowerOfTwoChoicesLoadBalancer<T> extends AbstractStatsLoadBalancer<T> {
+    @Override
+    public T select(List<T> backends) {
+        return select(backends, null);
+    }
+
+    /**
+     * 随机位置被排除时, 从这个位置开始取第一个没有被排除的后端服务
+     */
+    @Override
+    public T select(List<T> backends, Predicate<? super T> excluded) {
+        int size = backends.size();
+        if (size == 0) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(size);
+        T a = pick(backends, i, excluded, null);
+        if (a == null || size == 1) {
+            return a;
+        }
+        int j = random.nextInt(size - 1);
+        if (j >= i) {
+            j++;
+        }
+        T b = pick(backends, j, excluded, a);
+        if (b == null) {
+            return a;
+        }
+        int inFlightA = inFlight(a);
+        int inFlightB = inFlight(b);
+        if (inFlightA != inFlightB) {
+            return inFlightA < inFlightB ? a : b;
+        }
+        long now = System.nanoTime();
+        double mean = meanEwma(backends);
+        return ewma(a, now, mean) <= ewma(b, now, mean) ? a : b;
+    }
+
+    private T pick(List<T> backends, int start, Predicate<? super T> excluded, T other) {
+        int size = backends.size();
+        for (int i = 0; i < size; i++) {
+            T backend = backends.get((start + i) % size);
+            if (backend != other && (excluded == null || !excluded.test(backend))) {
+                return backend;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,37 @@
+package org.apdplat.service.ha;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 轮询, 每个后端服务平均分配调用
+ */
+public class RoundRobinLoadBalancer<T> implements LoadBalancer<T> {
+    private final AtomicInteger index = new AtomicInteger();
+
+    @Override
+    public T select(List<T> backends) {
+        return select(backends, null);
+    }
+
+    /**
+     * 从轮询到的位置开始, 取第一个没有被排除的后端服务
+     */
+    @Override
+    public T select(List<T> backends, Predicate<? super T> excluded) {
+        int size = backends.size();
+        if (size == 0) {
+            return null;
+        }
+        // 计数溢出后变为负数, 去掉符号位保证下标不为负
+        int start = (index.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            T backend = backends.get((start + i) % size);
+            if (excluded == null || !excluded.test(backend)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+}
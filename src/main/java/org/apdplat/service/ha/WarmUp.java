@@ -0,0 +1,188 @@
+package org.apdplat.service.ha;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * 后端服务预热
+ * 后端服务进入轮转之前并行建立连接, 然后发送几次探测请求, 避免启动及配置重新加载后的第一批请求承担建立连接的耗时
+ * 所有后端服务的所有连接同时建立, 整个预热过程的耗时有上限
+ * 预热失败的后端服务不进入轮转, 由调用者标记为不可用, 到期没有完成的后端服务不再等待, 直接进入轮转
+ */
+public class WarmUp<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmUp.class);
+
+    /**
+     * 预热一个后端服务
+     */
+    public interface Warmer<T> {
+        /**
+         * 建立一个连接并放入连接池
+         * @param backend
+         * @throws Exception 建立连接失败
+         */
+        void connect(T backend) throws Exception;
+
+        /**
+         * 发送一次探测请求
+         * @param backend
+         * @throws Exception 探测失败
+         */
+        void probe(T backend) throws Exception;
+    }
+
+    private final String name;
+    private final Function<T, String> namer;
+    private final Warmer<T> warmer;
+
+    private volatile int connections = 0;
+    private volatile int probes = 0;
+    private volatile int threads = 8;
+    private volatile long timeoutMillis = 3000;
+
+    private volatile String status = "未预热";
+
+    /**
+     * @param name 用于日志及状态输出, 如 REDIS连接预热
+     * @param namer 后端服务的名称
+     * @param warmer
+     */
+    public WarmUp(String name, Function<T, String> namer, Warmer<T> warmer){
+        this.name = name;
+        this.namer = namer;
+        this.warmer = warmer;
+    }
+
+    /**
+     * 配置不正确时记录错误并保留原来的配置
+     * @param connections 每个后端服务建立的连接数, 为0时不建立连接
+     * @param probes 连接建立后发送的探测请求数, 为0时不探测
+     * @param threads 预热线程数
+     * @param timeoutMillis 整个预热过程最多等待的毫秒数
+     */
+    public void configure(int connections, int probes, int threads, long timeoutMillis){
+        if(connections < 0 || probes < 0 || threads <= 0 || timeoutMillis <= 0){
+            LOGGER.error(name + "配置不正确, 保留原来的配置, 连接数及探测次数不能小于0, 线程数及等待时间必须大于0: "
+                    + connections + ", " + probes + ", " + threads + ", " + timeoutMillis);
+            return;
+        }
+        this.connections = connections;
+        this.probes = probes;
+        this.threads = threads;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public boolean isEnabled(){
+        return connections > 0 || probes > 0;
+    }
+
+    /**
+     * 并行预热所有后端服务, 全部完成或者等待超时后返回
+     * @param backends
+     * @return 预热失败的后端服务
+     */
+    public List<T> warm(List<T> backends){
+        List<T> failed = new ArrayList<>();
+        if(!isEnabled() || backends.isEmpty()){
+            return failed;
+        }
+        int connections = this.connections;
+        int probes = this.probes;
+        long start = System.nanoTime();
+        ExecutorService executorService = Executors.newFixedThreadPool(
+                Math.min(threads, backends.size() * Math.max(connections, 1)));
+        try {
+            Map<T, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+            for (T backend : backends) {
+                List<CompletableFuture<Void>> connects = new ArrayList<>();
+                for (int i = 0; i < connections; i++) {
+                    connects.add(run(() -> warmer.connect(backend), executorService));
+                }
+                // 连接全部建立后再探测, 探测请求使用已经建立的连接
+                futures.put(backend, CompletableFuture.allOf(connects.toArray(new CompletableFuture<?>[connects.size()]))
+                        .thenCompose(v -> run(() -> {
+                            for (int i = 0; i < probes; i++) {
+                                warmer.probe(backend);
+                            }
+                        }, executorService)));
+            }
+            try {
+                CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+                        .get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 没有完成的后端服务直接进入轮转
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // 单个后端服务的失败在下面处理
+            }
+            long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            List<String> timeouts = new ArrayList<>();
+            List<String> failures = new ArrayList<>();
+            for (Map.Entry<T, CompletableFuture<Void>> entry : futures.entrySet()) {
+                CompletableFuture<Void> future = entry.getValue();
+                String backend = namer.apply(entry.getKey());
+                if (!future.isDone()) {
+                    timeouts.add(backend);
+                } else if (future.isCompletedExceptionally()) {
+                    failed.add(entry.getKey());
+                    failures.add(backend);
+                    try {
+                        future.join();
+                    } catch (CompletionException e) {
+                        LOGGER.error(name + "失败: " + backend, e.getCause());
+                    }
+                }
+            }
+            status = name + ": " + backends.size() + " 个服务, 每个服务 " + connections + " 个连接, 探测 " + probes + " 次"
+                    + ", 就绪耗时 " + cost + " 毫秒"
+                    + (failures.isEmpty() ? "" : ", 失败: " + failures)
+                    + (timeouts.isEmpty() ? "" : ", 超时未完成: " + timeouts);
+            if (failures.isEmpty() && timeouts.isEmpty()) {
+                LOGGER.info(status);
+            } else {
+                LOGGER.error(status);
+            }
+        }finally {
+            executorService.shutdownNow();
+        }
+        return failed;
+    }
+
+    /**
+     * 最近一次预热的结果
+     * @return
+     */
+    public String getStatus(){
+        return isEnabled() ? status : name + ": 未启用";
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    private static CompletableFuture<Void> run(Action action, Executor executor){
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    action.run();
+                    future.complete(null);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }catch (RejectedExecutionException e){
+            // 等待超时后线程池已经关闭
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,56 @@
+package org.apdplat.service.http;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * 写入内存的通道, 容量不足时自动扩容
+ * 知道内容长度时先调用ensureCapacity一次分配足够的容量, 写入时不再扩容复制
+ * 与ByteArrayOutputStream不同, 转换为字符串时直接解码内部数组, 不再复制一次
+ * 非线程安全
+ */
+class ByteArrayChannel implements WritableByteChannel {
+    private static final int INITIAL_CAPACITY = 1024;
+    // 按声明的长度预先分配的上限, 超出部分写入时再扩容, 避免错误的长度一次分配过多内存
+    private static final int MAX_RESERVED_CAPACITY = 64 * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] bytes = EMPTY;
+    private int count;
+
+    /**
+     * 保证至少可以再写入length个字节而不扩容, 只在还没有写入内容时分配
+     * @param length 如响应的Content-Length
+     */
+    public void ensureCapacity(long length){
+        if(count == 0 && length > bytes.length){
+            bytes = new byte[(int) Math.min(length, MAX_RESERVED_CAPACITY)];
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int length = src.remaining();
+        if(count + length > bytes.length){
+            bytes = Arrays.copyOf(bytes, Math.max(Math.max(bytes.length << 1, INITIAL_CAPACITY), count + length));
+        }
+        src.get(bytes, count, length);
+        count += length;
+        return length;
+    }
+
+    public String toString(Charset charset){
+        return new String(bytes, 0, count, charset);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,302 @@
+package org.apdplat.service.http;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * 基于NIO的异步HTTP客户端
+ * 少量IO线程即可驱动大量并发请求, 调用线程不会阻塞等待响应
+ * 同时在途的请求数不超过maxInFlight, 超出限制的请求立即以RejectedExecutionException失败, 避免请求无限堆积
+ * 连接按主机池化并保持长连接, 响应总是被完整读取以便连接复用, 空闲超时的连接由后台线程定期关闭
+ * 响应内容可以复制到按Content-Length一次分配的数组后解码为字符串, 也可以边接收边写入调用方提供的通道,
+ * 写入调用方的通道在写出线程上进行, 写完一块之前暂停读取这个连接, 调用方写得慢时不会阻塞IO线程上的其它连接
+ */
+public class NioHttpClient implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioHttpClient.class);
+    // IO线程检查超时的间隔, 决定了读超时的精度, 默认的1秒会让毫秒级的超时退化为1秒
+    private static final int SELECT_INTERVAL_MILLIS = 10;
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient client;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejectedTimes = new AtomicLong();
+    private final ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+    // 把响应内容写入调用方的通道, 每个响应同时最多占用一个线程
+    private final ExecutorService writerExecutorService = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "http-response-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile int maxInFlight = 1000;
+    private volatile int maxConnectionsPerHost = 100;
+    private volatile long idleTimeoutMillis = 60000;
+    private volatile RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(1000)
+            .setConnectionRequestTimeout(1000)
+            .setSocketTimeout(1000)
+            .build();
+
+    public NioHttpClient(int ioThreads, int maxInFlight, int maxConnectionsPerHost){
+        try {
+            DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                    .setIoThreadCount(ioThreads)
+                    .setSelectInterval(SELECT_INTERVAL_MILLIS)
+                    .setTcpNoDelay(true)
+                    .setSoKeepAlive(true)
+                    .build());
+            connectionManager = new PoolingNHttpClientConnectionManager(ioReactor);
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("构造NIO HTTP客户端失败", e);
+        }
+        // 参数不正确时使用默认值
+        connectionManager.setMaxTotal(this.maxInFlight);
+        connectionManager.setDefaultMaxPerRoute(this.maxConnectionsPerHost);
+        setMaxInFlight(maxInFlight);
+        setMaxConnectionsPerHost(maxConnectionsPerHost);
+        client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                // 服务端未指定Keep-Alive时长时, 长连接最多保持空闲超时时间
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? Math.min(keepAlive, idleTimeoutMillis) : idleTimeoutMillis;
+                })
+                .build();
+        client.start();
+        // 定期关闭过期及空闲超时的连接
+        scheduledExecutorService.scheduleWithFixedDelay(()->evictIdleConnections(), 5, 5, TimeUnit.SECONDS);
+        LOGGER.info("NIO HTTP客户端启动成功, IO线程数: {}, 最大在途请求数: {}, 每个主机最大连接数: {}",
+                ioThreads, this.maxInFlight, this.maxConnectionsPerHost);
+    }
+
+    /**
+     * 调整最大在途请求数, 连接池容量随之调整, 保证获得许可的请求不会在连接池中排队
+     * 不大于0时记录错误并保留原来的值
+     * @param maxInFlight
+     */
+    public void setMaxInFlight(int maxInFlight){
+        if(maxInFlight <= 0){
+            LOGGER.error("最大在途请求数必须大于0, 保留原来的值 {}: {}", this.maxInFlight, maxInFlight);
+            return;
+        }
+        this.maxInFlight = maxInFlight;
+        connectionManager.setMaxTotal(maxInFlight);
+    }
+
+    /**
+     * 调整每个主机的最大连接数, 请求数超过连接数时在连接池中排队, 排队时间受连接超时限制
+     * 不大于0时记录错误并保留原来的值
+     * @param maxConnectionsPerHost
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost){
+        if(maxConnectionsPerHost <= 0){
+            LOGGER.error("每个主机最大连接数必须大于0, 保留原来的值 {}: {}", this.maxConnectionsPerHost, maxConnectionsPerHost);
+            return;
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+    }
+
+    /**
+     * 连接超时同时用于限制从连接池获取连接的等待时间, 避免被黑洞主机拖到操作系统的TCP连接超时
+     * @param connectTimeoutMillis
+     */
+    public void setConnectTimeout(int connectTimeoutMillis){
+        requestConfig = RequestConfig.copy(requestConfig)
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectTimeoutMillis)
+                .build();
+    }
+
+    /**
+     * 默认读超时, 与get方法指定的读超时相同时可复用请求配置
+     * @param readTimeoutMillis
+     */
+    public void setReadTimeout(int readTimeoutMillis){
+        requestConfig = RequestConfig.copy(requestConfig)
+                .setSocketTimeout(readTimeoutMillis)
+                .build();
+    }
+
+    public void setIdleTimeout(long idleTimeoutMillis){
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public int getConnectTimeout() {
+        return requestConfig.getConnectTimeout();
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * 连接池状态
+     * @return leased: 使用中的连接数, available: 空闲的长连接数, pending: 等待连接的请求数, max: 最大连接数
+     */
+    public PoolStats getPoolStats(){
+        return connectionManager.getTotalStats();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejectedTimes() {
+        return rejectedTimes.get();
+    }
+
+    /**
+     * 异步GET请求, 响应状态码大于等于400视为失败
+     * 取消返回的future会中止底层的HTTP请求
+     * @param url
+     * @param timeoutMillis 读超时
+     * @return 响应内容, 按响应声明的字符集解码, 未声明时使用UTF-8
+     */
+    public CompletableFuture<String> get(String url, int timeoutMillis){
+        ByteArrayChannel body = new ByteArrayChannel();
+        // 写入内存不会阻塞, 直接在IO线程上写入
+        return execute(url, timeoutMillis, body, null, (written, charset) -> body.toString(charset));
+    }
+
+    /**
+     * 异步GET请求, 响应内容边接收边写入目标通道
+     * 在写出线程上写入, 写完一块之前暂停读取这个连接, 暂停时间超过读超时时请求失败
+     * 响应状态码大于等于400视为失败, 此时不会写入任何内容
+     * 返回的future在已经读取的内容全部写入之后才完成
+     * 取消返回的future会中止底层的HTTP请求
+     * @param url
+     * @param timeoutMillis 读超时
+     * @param target 响应内容写入的目标通道
+     * @return 写入的字节数
+     */
+    public CompletableFuture<Long> get(String url, int timeoutMillis, WritableByteChannel target){
+        return execute(url, timeoutMillis, target, writerExecutorService, (written, charset) -> written);
+    }
+
+    /**
+     * @param writer 写出线程, 为null时在IO线程上写入target
+     */
+    private <T> CompletableFuture<T> execute(String url, int timeoutMillis, WritableByteChannel target, Executor writer,
+                                             BiFunction<Long, Charset, T> resultBuilder){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if(!tryAcquire()){
+            rejectedTimes.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("在途请求数已达上限: " + maxInFlight));
+            return future;
+        }
+        HttpGet request;
+        try {
+            request = new HttpGet(url);
+        }catch (IllegalArgumentException e){
+            release();
+            future.completeExceptionally(e);
+            return future;
+        }
+        RequestConfig config = requestConfig;
+        if(config.getSocketTimeout() != timeoutMillis){
+            config = RequestConfig.copy(config).setSocketTimeout(timeoutMillis).build();
+        }
+        request.setConfig(config);
+        StreamingResponseConsumer<T> consumer = new StreamingResponseConsumer<>(target, writer, resultBuilder);
+        Future<T> response = client.execute(HttpAsyncMethods.create(request), consumer, new FutureCallback<T>() {
+            @Override
+            public void completed(T result) {
+                release();
+                // 最后一块内容可能还在写出线程上写入
+                consumer.whenWritten().whenComplete((v, e) -> {
+                    if(e != null){
+                        future.completeExceptionally(e);
+                    }else if(consumer.getStatusCode() >= 400){
+                        future.completeExceptionally(new IOException("HTTP状态码: " + consumer.getStatusCode() + ", url: " + url));
+                    }else {
+                        future.complete(consumer.result());
+                    }
+                });
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                release();
+                // 等正在写的内容写完, 调用方据此判断是否已经写入了部分内容
+                consumer.whenWritten().whenComplete((v, e) -> future.completeExceptionally(ex));
+            }
+
+            @Override
+            public void cancelled() {
+                release();
+                future.cancel(false);
+            }
+        });
+        future.whenComplete((r, e) -> {
+            if(future.isCancelled()){
+                response.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public void close() {
+        scheduledExecutorService.shutdownNow();
+        writerExecutorService.shutdown();
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.error("关闭NIO HTTP客户端失败", e);
+        }
+    }
+
+    private void evictIdleConnections(){
+        try {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }catch (Throwable e){
+            LOGGER.error("关闭空闲连接失败", e);
+        }
+    }
+
+    private boolean tryAcquire(){
+        while (true){
+            int current = inFlight.get();
+            if(current >= maxInFlight){
+                return false;
+            }
+            if(inFlight.compareAndSet(current, current + 1)){
+                return true;
+            }
+        }
+    }
+
+    private void release(){
+        inFlight.decrementAndGet();
+    }
+}
@@ -0,0 +1,52 @@
+package org.apdplat.service.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 把输出流适配为通道, 比如Servlet的响应输出流
+ * 堆缓冲区直接写出其内部数组, 不像Channels.newChannel那样先复制到中间数组
+ */
+public class OutputStreamChannel implements WritableByteChannel {
+    private final OutputStream out;
+    private byte[] transfer;
+    private volatile boolean open = true;
+
+    public OutputStreamChannel(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if(src.hasArray()){
+            out.write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+            return length;
+        }
+        if(transfer == null){
+            transfer = new byte[8192];
+        }
+        while (src.hasRemaining()){
+            int n = Math.min(src.remaining(), transfer.length);
+            src.get(transfer, 0, n);
+            out.write(transfer, 0, n);
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * 不关闭底层输出流, 由输出流的创建者关闭
+     */
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,176 @@
+package org.apdplat.service.http;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+
+/**
+ * 把响应内容边接收边写入目标通道, 不在内存中缓存完整的响应
+ * 没有指定写出线程时在IO线程上写入, 读缓冲区由每个IO线程复用, 只用于不会阻塞的目标通道, 如ByteArrayChannel
+ * 指定了写出线程时, IO线程把一块响应内容读入这个响应自己的缓冲区后暂停读取这个连接, 由写出线程写入目标通道,
+ * 写完后再恢复读取, 目标通道写得慢时只暂停这个连接, 不阻塞IO线程上的其它连接, 响应内容也不会在内存中堆积
+ * 响应状态码大于等于400时丢弃响应内容, 由调用方根据状态码判定失败
+ */
+class StreamingResponseConsumer<T> extends AbstractAsyncResponseConsumer<T> {
+    private static final int BUFFER_SIZE = 8192;
+    // 回调方法只在IO线程上执行, 每个IO线程复用一个读缓冲区
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+    private static final CompletableFuture<Void> NO_WRITE = CompletableFuture.completedFuture(null);
+
+    private final WritableByteChannel target;
+    private final Executor writer;
+    private final BiFunction<Long, Charset, T> resultBuilder;
+
+    private volatile int statusCode;
+    private volatile Charset charset = StandardCharsets.UTF_8;
+    private volatile long written;
+    // 写出线程使用时每个响应一个缓冲区, 同时只有一块内容在写
+    private ByteBuffer chunk;
+    private volatile CompletableFuture<Void> pendingWrite = NO_WRITE;
+
+    /**
+     * @param target 响应内容写入的目标通道
+     * @param writer 写出线程, 为null时在IO线程上写入
+     * @param resultBuilder 根据写入的字节数及响应的字符集构造结果
+     */
+    StreamingResponseConsumer(WritableByteChannel target, Executor writer, BiFunction<Long, Charset, T> resultBuilder) {
+        this.target = target;
+        this.writer = writer;
+        this.resultBuilder = resultBuilder;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+        statusCode = response.getStatusLine().getStatusCode();
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        if(contentType != null && contentType.getCharset() != null){
+            charset = contentType.getCharset();
+        }
+        if(statusCode < 400 && target instanceof ByteArrayChannel){
+            // 响应声明了长度时一次分配足够的容量, 接收过程中不再扩容复制
+            ((ByteArrayChannel) target).ensureCapacity(entity.getContentLength());
+        }
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        if(writer != null){
+            handOff(decoder, ioControl);
+            return;
+        }
+        ByteBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        while (decoder.read(buffer) > 0){
+            buffer.flip();
+            if(statusCode < 400) {
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * 读入一块内容, 暂停读取, 交给写出线程写入, 写完后恢复读取
+     * 上一块写入失败时抛出异常, 中止这个请求
+     */
+    private void handOff(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        CompletableFuture<Void> previous = pendingWrite;
+        if(previous.isCompletedExceptionally()){
+            try {
+                previous.join();
+            }catch (CompletionException e){
+                throw new IOException("响应内容写入目标通道失败", e.getCause());
+            }
+        }
+        if(chunk == null){
+            chunk = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        chunk.clear();
+        while (chunk.hasRemaining() && decoder.read(chunk) > 0){
+            // 尽量读满一块
+        }
+        chunk.flip();
+        if(statusCode >= 400 || !chunk.hasRemaining()){
+            return;
+        }
+        CompletableFuture<Void> write = new CompletableFuture<>();
+        pendingWrite = write;
+        // 最后一块内容读完后连接会归还给连接池, 不能再暂停读取
+        boolean suspend = !decoder.isCompleted();
+        if(suspend){
+            ioControl.suspendInput();
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    while (chunk.hasRemaining()) {
+                        written += target.write(chunk);
+                    }
+                    write.complete(null);
+                } catch (Throwable e) {
+                    write.completeExceptionally(e);
+                } finally {
+                    if(suspend) {
+                        ioControl.requestInput();
+                    }
+                }
+            });
+        }catch (RejectedExecutionException e){
+            write.completeExceptionally(e);
+            if(suspend) {
+                ioControl.requestInput();
+            }
+            throw new IOException("响应内容写出线程已经关闭", e);
+        }
+    }
+
+    @Override
+    protected T buildResult(HttpContext context) {
+        return result();
+    }
+
+    /**
+     * 交给写出线程的内容全部写完时完成, 写入失败时以异常完成
+     * @return
+     */
+    CompletableFuture<Void> whenWritten() {
+        return pendingWrite;
+    }
+
+    /**
+     * 在whenWritten完成后调用, 写入的字节数才是最终的
+     * @return
+     */
+    T result() {
+        return statusCode >= 400 ? null : resultBuilder.apply(written, charset);
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    protected void releaseResources() {
+    }
+}
@@ -1,43 +1,121 @@
 package org.apdplat.service.impl;
 
+import org.apache.http.pool.PoolStats;
 import org.apdplat.service.api.SearchAPI;
+import org.apdplat.service.cache.LocalCache;
+import org.apdplat.service.configration.ConfKey;
 import org.apdplat.service.configration.ConfManager;
 import org.apdplat.service.configration.ConfTools;
+import org.apdplat.service.ha.AdaptiveTimeout;
+import org.apdplat.service.ha.CircuitBreaker;
+import org.apdplat.service.ha.ConcurrencyLimiter;
+import org.apdplat.service.ha.HedgePolicy;
+import org.apdplat.service.ha.LoadBalancer;
+import org.apdplat.service.ha.LoadBalancers;
+import org.apdplat.service.ha.WarmUp;
+import org.apdplat.service.http.NioHttpClient;
+import org.apdplat.service.http.OutputStreamChannel;
+import org.apdplat.service.metrics.LatencyHistogram;
+import org.apdplat.service.metrics.RollingCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 /**
  * Created by ysc on 7/5/16.
  */
 public class SearchAPIImpl implements SearchAPI, Observer {
     private static final Logger LOGGER = LoggerFactory.getLogger(SearchAPIImpl.class);
+    private static final ConfKey<Boolean> STATUS_LOG_ENABLED = ConfKey.ofBoolean("status.log.enabled", true);
+    private static final byte[] EMPTY_RESULT = "[]".getBytes(StandardCharsets.UTF_8);
 
-    private volatile int timeout = ConfTools.getInt("search.api.timeout.seconds", 1)*1000;
+    private volatile int timeout = defaultTimeout();
 
-    private List<String> availableUrls = new CopyOnWriteArrayList<>();
-    private List<String> unavailableUrls = new CopyOnWriteArrayList<>();
-    private AtomicInteger totalCallTimes = new AtomicInteger();
-    private Map<String, AtomicInteger> callSuccessHistories = new ConcurrentHashMap<>();
-    private Map<String, AtomicInteger> callFailureHistories = new ConcurrentHashMap<>();
+    // 可用及不可用URL的不可变快照, 变化时在urlsLock内整体替换, 调用路径直接按下标读取
+    private volatile List<String> availableUrls = Collections.emptyList();
+    private volatile List<String> unavailableUrls = Collections.emptyList();
+    private final Object urlsLock = new Object();
+    // 计数器使用LongAdder, 多线程同时调用时不会竞争同一个变量, 也不会溢出
+    private LongAdder totalCallTimes = new LongAdder();
+    // 每个URL的调用成功及失败次数, 由熔断器记录, 熔断器重建及URL移除后保留
+    private Map<String, RollingCounter> callHistories = new ConcurrentHashMap<>();
+    // 每个URL成功调用的耗时分布
+    private Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
 
     private ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
 
+    // 轻量的定时任务, 如发送对冲请求, 熔断器进入半开状态, 任务不能阻塞
+    private ScheduledThreadPoolExecutor timerExecutorService = new ScheduledThreadPoolExecutor(1);
+
+    private HedgePolicy hedgePolicy = new HedgePolicy();
+
+    private AdaptiveTimeout<String> adaptiveTimeout = new AdaptiveTimeout<>();
+
+    private volatile LoadBalancer<String> balancer = LoadBalancers.create(null);
+
+    private volatile String balancerName;
+
+    private Map<String, CircuitBreaker<String>> breakers = new ConcurrentHashMap<>();
+
+    // 每个URL的自适应并发上限, 达到上限的URL不再被选中, 请求转到其它URL
+    private ConcurrencyLimiter<String> limiter = new ConcurrencyLimiter<>();
+
+    private volatile CircuitBreaker.Settings breakerSettings = CircuitBreaker.Settings.load("search.api.breaker.");
+
+    // 搜索结果缓存, KEY为topN:keyword, 权重为KEY和VALUE占用的字节数
+    private LocalCache<String, String> cache = new LocalCache<>("搜索结果缓存",
+            (key, value) -> 2L * (key.length() + value.length()) + 64);
+
+    private volatile String urls;
+
+    // 新增的URL进入轮转之前建立连接并探测几次
+    private WarmUp<String> warmUp = new WarmUp<>("搜索服务连接预热", url -> url, new WarmUp.Warmer<String>() {
+        @Override
+        public void connect(String url) throws Exception {
+            // 同时发出的请求各自建立一个连接, 完成后连接保留在连接池中
+            httpClient.get(url, timeout).get();
+        }
+
+        @Override
+        public void probe(String url) {
+            if(!isAvailable(url)){
+                throw new IllegalStateException("搜索服务返回的结果不正确: " + url);
+            }
+        }
+    });
+
+    private NioHttpClient httpClient = new NioHttpClient(
+            ConfTools.getInt("search.api.io.threads", Runtime.getRuntime().availableProcessors()),
+            ConfTools.getInt("search.api.max.in.flight", 1000),
+            ConfTools.getInt("search.api.max.connections.per.host", 100));
+
     public SearchAPIImpl(){
-        // 注册观察者
-        ConfManager.addObserver(this);
+        // 注册观察者, 只关注本服务的配置项
+        ConfManager.addObserver(this, "search.api.");
         // 定时检查不可用服务是否已经恢复
         scheduledExecutorService.scheduleAtFixedRate(()->validUnavailableUrls(),
                 ConfTools.getInt("unavailable.schedule.initial.delay.seconds", 60),
                 ConfTools.getInt("unavailable.schedule.period.seconds", 60),
                 TimeUnit.SECONDS);
+        // 对冲请求被取消后立即从队列中移除
+        timerExecutorService.setRemoveOnCancelPolicy(true);
+        // 定时根据最近的请求耗时计算对冲延迟
+        timerExecutorService.scheduleAtFixedRate(()->hedgePolicy.refresh(), 1, 1, TimeUnit.SECONDS);
+        // 定时根据每个URL最近的请求耗时计算自适应超时时间
+        timerExecutorService.scheduleAtFixedRate(()->adaptiveTimeout.refresh(latencies), 1, 1, TimeUnit.SECONDS);
         // 初始化服务
         init();
     }
@@ -45,97 +123,247 @@ public class SearchAPIImpl implements SearchAPI, Observer {
     @Override
     public void close() {
         scheduledExecutorService.shutdownNow();
+        timerExecutorService.shutdownNow();
+        httpClient.close();
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getLatencySnapshots() {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new HashMap<>();
+        latencies.forEach((url, histogram) -> snapshots.put(url, histogram.snapshot()));
+        return snapshots;
+    }
+
+    private LatencyHistogram latency(String url){
+        return latencies.computeIfAbsent(url, u -> new LatencyHistogram());
     }
 
     @Override
     public String getStatus() {
         StringBuilder status = new StringBuilder();
+        PoolStats poolStats = httpClient.getPoolStats();
         status.append("超时时间: ").append(timeout).append(" 毫秒\n")
-              .append("总调用次数: ").append(totalCallTimes.get()).append(" 次\n");
+              .append("连接超时时间: ").append(httpClient.getConnectTimeout()).append(" 毫秒\n")
+              .append("连接池: 使用中 ").append(poolStats.getLeased())
+              .append(", 空闲 ").append(poolStats.getAvailable())
+              .append(", 等待 ").append(poolStats.getPending())
+              .append(", 每个主机最大 ").append(httpClient.getMaxConnectionsPerHost()).append("\n")
+              .append("总调用次数: ").append(totalCallTimes.sum()).append(" 次\n")
+              .append("在途请求数: ").append(httpClient.getInFlight()).append(" / ").append(httpClient.getMaxInFlight()).append("\n")
+              .append("超过在途上限被拒绝次数: ").append(httpClient.getRejectedTimes()).append(" 次\n");
+        if(adaptiveTimeout.isEnabled()){
+            status.append(adaptiveTimeout.getStatus()).append("\n");
+        }
+        if(hedgePolicy.isEnabled()){
+            status.append(hedgePolicy.getStatus()).append("\n");
+        }
+        status.append(warmUp.getStatus()).append("\n");
+        if(cache.isEnabled()){
+            status.append(cache.getStatus()).append("\n");
+        }
         if(!availableUrls.isEmpty()){
             status.append("可用搜索服务URL: \n");
             int i=1;
             for(String url : availableUrls){
-                status.append("\t").append(i++).append(". ").append(url).append("\n");
+                status.append("\t").append(i++).append(". ").append(url)
+                        .append("\t").append(breaker(url).getStatus())
+                        .append("\t").append(balancer.getStatus(url))
+                        .append("\t").append(limiter.getStatus(url))
+                        .append("\t超时时间: ").append(timeout(url)).append(" 毫秒").append("\n");
             }
         }
         if(!unavailableUrls.isEmpty()) {
             status.append("不可用搜索服务URL: \n");
             int i = 1;
             for (String url : unavailableUrls) {
-                status.append("\t").append(i++).append(". ").append(url).append("\n");
+                status.append("\t").append(i++).append(". ").append(url)
+                        .append("\t").append(breaker(url).getStatus()).append("\n");
             }
         }
-        if(!callSuccessHistories.isEmpty()){
-            status.append("搜索服务URL调用成功次数统计: \n");
+        if(!callHistories.isEmpty()){
+            status.append("搜索服务URL调用次数统计: \n");
             int i=1;
-            for(String url : callSuccessHistories.keySet()){
-                status.append("\t").append(i++).append(". ").append(url).append(" -->  ").append(callSuccessHistories.get(url).get()).append("\n");
+            for(Map.Entry<String, RollingCounter> entry : callHistories.entrySet()){
+                RollingCounter calls = entry.getValue();
+                status.append("\t").append(i++).append(". ").append(entry.getKey())
+                        .append(" -->  累计成功 ").append(calls.getSuccessTimes()).append(" 次, 失败 ").append(calls.getFailureTimes()).append(" 次")
+                        .append("\t").append(calls.getStatus()).append("\n");
             }
         }
-        if(!callFailureHistories.isEmpty()){
-            status.append("搜索服务URL调用失败次数统计: \n");
+        if(!latencies.isEmpty()){
+            status.append("搜索服务URL调用耗时统计: \n");
             int i=1;
-            for(String url : callFailureHistories.keySet()){
-                status.append("\t").append(i++).append(". ").append(url).append(" -->  ").append(callFailureHistories.get(url).get()).append("\n");
+            for(Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()){
+                status.append("\t").append(i++).append(". ").append(entry.getKey()).append(" -->  ").append(entry.getValue().snapshot()).append("\n");
             }
         }
 
         return status.toString();
     }
 
-    public Map<String, AtomicInteger> getCallSuccessHistories(){
-        return Collections.unmodifiableMap(callSuccessHistories);
+    /**
+     * 每个URL自创建以来的调用成功次数
+     * @return
+     */
+    public Map<String, Long> getCallSuccessHistories(){
+        Map<String, Long> histories = new HashMap<>();
+        callHistories.forEach((url, calls) -> histories.put(url, calls.getSuccessTimes()));
+        return Collections.unmodifiableMap(histories);
+    }
+
+    /**
+     * 每个URL自创建以来的调用失败次数
+     * @return
+     */
+    public Map<String, Long> getCallFailureHistories(){
+        Map<String, Long> histories = new HashMap<>();
+        callHistories.forEach((url, calls) -> histories.put(url, calls.getFailureTimes()));
+        return Collections.unmodifiableMap(histories);
     }
 
-    public Map<String, AtomicInteger> getCallFailureHistories(){
-        return Collections.unmodifiableMap(callFailureHistories);
+    /**
+     * 每个URL在滚动时间窗口内的调用次数
+     * @return
+     */
+    public Map<String, RollingCounter> getCallHistories(){
+        return Collections.unmodifiableMap(callHistories);
     }
 
     public int getTimeout(){
         return timeout;
     }
 
-    public int getTotalCallTimes(){
-        return totalCallTimes.get();
+    public long getTotalCallTimes(){
+        return totalCallTimes.sum();
     }
 
+    /**
+     * @return 当前可用URL的快照
+     */
     public List<String> getAvailableUrls() {
-        return Collections.unmodifiableList(availableUrls);
+        return availableUrls;
     }
 
+    /**
+     * @return 当前不可用URL的快照
+     */
     public List<String> getUnavailableUrls() {
-        return Collections.unmodifiableList(unavailableUrls);
+        return unavailableUrls;
     }
 
     /**
      * 配置发生变化, 重新加载提供搜索服务的URL
      * @param o
-     * @param arg
+     * @param arg 发生变化的配置项
      */
     @Override
     public void update(Observable o, Object arg) {
-        LOGGER.info("收到配置文件已经发生变化的通知");
+        LOGGER.info("收到配置文件已经发生变化的通知: {}", arg);
         // 重新初始化
         init();
     }
 
     public void init() {
-        timeout = ConfTools.getInt("search.api.timeout.seconds", 1)*1000;
-        LOGGER.info("搜索服务调用超时时间: {} 秒", timeout);
+        timeout = defaultTimeout();
+        LOGGER.info("搜索服务调用超时时间: {} 毫秒", timeout);
+        httpClient.setReadTimeout(timeout);
+        int maxTimeout = ConfTools.getInt("search.api.timeout.adaptive.max.millis", timeout);
+        adaptiveTimeout.configure(ConfTools.getBoolean("search.api.timeout.adaptive.enabled", false),
+                ConfTools.getInt("search.api.timeout.adaptive.percentile", 99),
+                ConfTools.getInt("search.api.timeout.adaptive.multiplier.percent", 300),
+                Math.min(ConfTools.getInt("search.api.timeout.adaptive.min.millis", 50), maxTimeout),
+                maxTimeout);
+        LOGGER.info("搜索服务{}", adaptiveTimeout.isEnabled() ? adaptiveTimeout.getStatus() : "自适应超时: 未启用");
+        httpClient.setConnectTimeout(ConfTools.getInt("search.api.connect.timeout.millis", 200));
+        LOGGER.info("搜索服务连接超时时间: {} 毫秒", httpClient.getConnectTimeout());
+        httpClient.setMaxInFlight(ConfTools.getInt("search.api.max.in.flight", 1000));
+        LOGGER.info("搜索服务最大在途请求数: {}", httpClient.getMaxInFlight());
+        httpClient.setMaxConnectionsPerHost(ConfTools.getInt("search.api.max.connections.per.host", 100));
+        LOGGER.info("搜索服务每个主机最大连接数: {}", httpClient.getMaxConnectionsPerHost());
+        httpClient.setIdleTimeout(ConfTools.getInt("search.api.connection.idle.timeout.millis", 60000));
+        LOGGER.info("搜索服务空闲连接超时时间: {} 毫秒", httpClient.getIdleTimeout());
+        hedgePolicy.configure(ConfTools.getBoolean("search.api.hedge.enabled", false),
+                ConfTools.getInt("search.api.hedge.delay.millis", 50),
+                ConfTools.getInt("search.api.hedge.delay.percentile", 95),
+                ConfTools.getInt("search.api.hedge.budget.percent", 5));
+        LOGGER.info("搜索服务对冲请求: {}", hedgePolicy.isEnabled() ? hedgePolicy.getStatus() : "未启用");
+        cache.configure(ConfTools.getInt("search.api.cache.max.entries", 0),
+                ConfTools.getInt("search.api.cache.max.bytes", 0),
+                ConfTools.getInt("search.api.cache.ttl.seconds", 60)*1000L);
+        LOGGER.info("搜索结果缓存: {}", cache.isEnabled() ? "启用" : "未启用");
+        String balancerName = ConfTools.get("search.api.balancer", "round-robin");
+        if(!balancerName.equals(this.balancerName)) {
+            // 策略不变时保留在途调用数及耗时统计
+            balancer = LoadBalancers.create(balancerName);
+            this.balancerName = balancerName;
+        }
+        LOGGER.info("搜索服务负载均衡策略: {}", balancerName);
+        CircuitBreaker.Settings settings = CircuitBreaker.Settings.load("search.api.breaker.");
+        if(!settings.equals(breakerSettings)) {
+            // 熔断器使用创建时的配置, 配置变化时重新创建
+            breakerSettings = settings;
+            breakers.clear();
+        }
+        LOGGER.info("搜索服务熔断器: {}", breakerSettings);
+        limiter.configure(ConfTools.getBoolean("search.api.limit.enabled", false),
+                ConfTools.getInt("search.api.limit.initial", 20),
+                ConfTools.getInt("search.api.limit.min", 1),
+                ConfTools.getInt("search.api.limit.max", 200),
+                ConfTools.getInt("search.api.limit.latency.tolerance.percent", 200),
+                ConfTools.getInt("search.api.limit.backoff.percent", 90));
+        LOGGER.info("搜索服务自适应并发上限: {}", limiter.isEnabled() ? "启用" : "未启用");
         String urls = ConfTools.get("search.api.server.urls");
         if(urls == null){
             LOGGER.error("配置文件中没有指定提供搜索服务的URL");
             return;
         }
-        availableUrls.clear();
-        unavailableUrls.clear();
+        if(!urls.equals(this.urls)){
+            // 提供搜索服务的URL发生变化, 清空缓存的搜索结果
+            cache.invalidateAll();
+            this.urls = urls;
+        }
+        List<String> newUrls = new ArrayList<>();
         for(String url : urls.split(",")){
             url = url.trim();
             LOGGER.info("增加提供搜索服务的URL: {}", url);
-            if(!availableUrls.contains(url)) {
-                availableUrls.add(url);
+            if(!newUrls.contains(url)) {
+                newUrls.add(url);
+            }
+        }
+        // 保留的URL维持原来的连接, 可用状态及熔断器, 只预热新增的URL, 预热期间原来的URL继续提供服务
+        List<String> coldUrls = new ArrayList<>(newUrls);
+        coldUrls.removeAll(availableUrls);
+        coldUrls.removeAll(unavailableUrls);
+        List<String> removedUrls = new ArrayList<>(availableUrls);
+        removedUrls.addAll(unavailableUrls);
+        removedUrls.removeAll(newUrls);
+        LOGGER.info("提供搜索服务的URL: 保留 {} 个, 增加 {} 个, 移除 {} 个",
+                newUrls.size() - coldUrls.size(), coldUrls.size(), removedUrls.size());
+        warmUp.configure(ConfTools.getInt("search.api.warmup.connections", 4),
+                ConfTools.getInt("search.api.warmup.probe.queries", 1),
+                ConfTools.getInt("search.api.warmup.threads", 8),
+                ConfTools.getInt("search.api.warmup.timeout.millis", 3000));
+        List<String> failed = warmUp.warm(coldUrls);
+        synchronized (urlsLock) {
+            List<String> available = new ArrayList<>(availableUrls);
+            List<String> unavailable = new ArrayList<>(unavailableUrls);
+            for (String url : coldUrls) {
+                if (failed.contains(url)) {
+                    unavailable.add(url);
+                } else {
+                    available.add(url);
+                }
             }
+            // 移除的URL不再被选中, 在途请求正常完成, 连接由空闲超时关闭
+            available.removeAll(removedUrls);
+            unavailable.removeAll(removedUrls);
+            availableUrls = LoadBalancers.snapshot(available);
+            unavailableUrls = LoadBalancers.snapshot(unavailable);
+        }
+        for(String url : removedUrls){
+            breakers.remove(url);
+            balancer.remove(url);
+            limiter.remove(url);
         }
         if(!availableUrls.isEmpty()){
             LOGGER.info("提供搜索服务的URL({}):", availableUrls.size());
@@ -149,17 +377,18 @@ public class SearchAPIImpl implements SearchAPI, Observer {
     private void validUnavailableUrls(){
         for(String url : unavailableUrls){
             if(isAvailable(url)){
+                breaker(url).close();
                 urlAvailable(url);
             }
         }
-        if(ConfTools.getBoolean("status.log.enabled", true)){
+        if(STATUS_LOG_ENABLED.get()){
             LOGGER.info("\n{}", getStatus());
         }
     }
 
     private boolean isAvailable(String url){
         try{
-            String result = get(url);
+            String result = httpClient.get(url, timeout).get();
             if(result != null
                     && result.contains("id")
                     && result.contains("name")
@@ -177,59 +406,527 @@ public class SearchAPIImpl implements SearchAPI, Observer {
         if(availableUrls.isEmpty()){
             validUnavailableUrls();
         }
-        while (!availableUrls.isEmpty()){
-            String url = null;
-            try{
-                int index = totalCallTimes.incrementAndGet() % availableUrls.size();
-                url = availableUrls.get(index);
-                String result = get(url+"?kw="+keyword+"&topN="+topN);
-                callSuccess(url);
-                return result;
-            }catch (Throwable ex){
+        return searchAsync(keyword, topN).join();
+    }
+
+    /**
+     * 启用缓存时先查缓存, 相同keyword和topN的并发未命中只调用一次搜索服务
+     * 没有可用URL时返回的"[]"不缓存
+     * @param keyword
+     * @param topN
+     * @return
+     */
+    @Override
+    public CompletableFuture<String> searchAsync(String keyword, int topN) {
+        if(!cache.isEnabled()){
+            return searchBackend(keyword, topN);
+        }
+        return cache.get(topN+":"+keyword, key -> searchBackend(keyword, topN), result -> !"[]".equals(result));
+    }
+
+    /**
+     * 所有关键词同时发起搜索, 由负载均衡分散到各个可用URL, 每个关键词独立失败转移
+     * 等待时间不超过deadlineMillis, 到期未完成的搜索被取消, 不出现在返回结果中
+     * 启用缓存时, 同一个关键词的加载没有其它调用方等待才中止对搜索服务的请求
+     * @param keywords
+     * @param topN
+     * @param deadlineMillis 最长等待时间
+     * @return 关键词及其搜索结果, 顺序与keywords相同
+     */
+    @Override
+    public Map<String, String> searchBatch(Collection<String> keywords, int topN, long deadlineMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        if(availableUrls.isEmpty()){
+            validUnavailableUrls();
+        }
+        Map<String, CompletableFuture<String>> futures = new LinkedHashMap<>();
+        for(String keyword : keywords){
+            if(!futures.containsKey(keyword)) {
+                futures.put(keyword, searchAsync(keyword, topN));
+            }
+        }
+        try {
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }catch (TimeoutException e){
+            LOGGER.error("批量搜索超时, 关键词数: {}, 等待时间: {} 毫秒", futures.size(), deadlineMillis);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch (ExecutionException e){
+            // 单个关键词的失败在下面处理
+        }
+        Map<String, String> results = new LinkedHashMap<>();
+        for(Map.Entry<String, CompletableFuture<String>> entry : futures.entrySet()){
+            CompletableFuture<String> future = entry.getValue();
+            if(future.isDone() && !future.isCompletedExceptionally()){
+                results.put(entry.getKey(), future.join());
+            }else{
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public long search(String keyword, int topN, OutputStream out) {
+        if(availableUrls.isEmpty()){
+            validUnavailableUrls();
+        }
+        return searchAsync(keyword, topN, new OutputStreamChannel(out)).join();
+    }
+
+    /**
+     * 搜索结果不缓存, 也不发送对冲请求
+     * 已经写入部分内容后调用失败无法转移到其它URL, 返回的future以异常完成
+     * @param keyword
+     * @param topN
+     * @param target
+     * @return
+     */
+    @Override
+    public CompletableFuture<Long> searchAsync(String keyword, int topN, WritableByteChannel target) {
+        checkUnavailableUrls();
+        SearchCall<Long> searchCall = new StreamingSearchCall(keyword, topN, new CountingChannel(target));
+        searchCall.next();
+        return searchCall;
+    }
+
+    private CompletableFuture<String> searchBackend(String keyword, int topN) {
+        checkUnavailableUrls();
+        SearchCall<String> searchCall = new BufferedSearchCall(keyword, topN);
+        searchCall.next();
+        return searchCall;
+    }
+
+    /**
+     * 毫秒级的超时配置优先, 兼容原来以秒为单位的配置
+     * @return
+     */
+    private static int defaultTimeout(){
+        return ConfTools.getInt("search.api.timeout.millis", ConfTools.getInt("search.api.timeout.seconds", 1)*1000);
+    }
+
+    private int timeout(String url){
+        return adaptiveTimeout.getTimeout(url, timeout);
+    }
+
+    private void checkUnavailableUrls(){
+        if(availableUrls.isEmpty()){
+            // 不阻塞调用线程, 由定时任务线程检查不可用服务是否已经恢复
+            scheduledExecutorService.execute(()->validUnavailableUrls());
+        }
+    }
+
+    private String query(String url, String keyword, int topN){
+        return url+"?kw="+encode(keyword)+"&topN="+topN;
+    }
+
+    private long writeEmptyResult(WritableByteChannel target){
+        ByteBuffer empty = ByteBuffer.wrap(EMPTY_RESULT);
+        try {
+            while (empty.hasRemaining()) {
+                target.write(empty);
+            }
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        return EMPTY_RESULT.length;
+    }
+
+    /**
+     * 由负载均衡策略从可用URL的快照中选择URL, 没有可用URL时返回null
+     * 半开状态的URL试探名额已用完或者并发已达上限时, 从这个URL之后按顺序尝试其余的URL
+     * 返回的URL已经获得熔断器及并发上限的许可
+     * @param excluded 本次搜索已经调用过的URL, 为null时都可以选择
+     * @return
+     */
+    private String nextUrl(Predicate<String> excluded){
+        List<String> candidates = availableUrls;
+        LoadBalancer<String> balancer = this.balancer;
+        String url = balancer.select(candidates, excluded);
+        if(url == null || acquire(url)){
+            return url;
+        }
+        // 被拒绝时依次尝试其余的URL, 不复制列表
+        int size = candidates.size();
+        int start = candidates.indexOf(url);
+        for(int i=1; i<size; i++){
+            url = candidates.get((start + i) % size);
+            if((excluded == null || !excluded.test(url)) && acquire(url)){
+                return url;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 申请熔断器及并发上限的许可
+     * @param url
+     * @return
+     */
+    private boolean acquire(String url){
+        CircuitBreaker<String> breaker = breaker(url);
+        if (breaker.tryAcquire()) {
+            if (limiter.tryAcquire(url)) {
+                totalCallTimes.increment();
+                return true;
+            }
+            breaker.onCancel();
+        }
+        return false;
+    }
+
+    private CircuitBreaker<String> breaker(String url){
+        CircuitBreaker<String> breaker = breakers.get(url);
+        if(breaker != null){
+            return breaker;
+        }
+        // 创建熔断器的lambda引用了this, 每次求值都会分配对象, 只在第一次调用时使用
+        return breakers.computeIfAbsent(url, u -> new CircuitBreaker<>(u, u, breakerSettings,
+                callHistories.computeIfAbsent(u, k -> new RollingCounter()), this::onBreakerStateChange));
+    }
+
+    /**
+     * 熔断器驱动可用及不可用URL列表
+     * @param breaker
+     * @param from
+     * @param to
+     */
+    private void onBreakerStateChange(CircuitBreaker<String> breaker, CircuitBreaker.State from, CircuitBreaker.State to){
+        String url = breaker.getBackend();
+        if(breakers.get(url) != breaker){
+            // 配置重新加载前的熔断器
+            return;
+        }
+        switch (to){
+            case OPEN:
                 urlUnavailable(url);
-                callFailure(url);
-                LOGGER.error("异常信息: ", ex);
-                LOGGER.error("调用搜索服务失败, keyword: {}, topN: {}, url: {}", keyword, topN, url);
+                LOGGER.error("搜索服务URL熔断, {} 毫秒后放行试探调用: {}", breaker.getOpenMillis(), url);
+                timerExecutorService.schedule(()->breaker.halfOpen(), breaker.getOpenMillis(), TimeUnit.MILLISECONDS);
+                break;
+            case HALF_OPEN:
+                LOGGER.info("搜索服务URL熔断时长已过, 放行试探调用: {}", url);
+                urlAvailable(url);
+                break;
+            case CLOSED:
+                LOGGER.info("搜索服务URL恢复可用: {}", url);
+                urlAvailable(url);
+                break;
+        }
+    }
+
+    /**
+     * 一次搜索, 可能包含失败转移及对冲产生的多次URL调用, 本身就是返回给调用方的结果
+     * 先成功的调用完成结果, 其余在途调用被取消
+     * 调用失败时如果没有其它在途调用, 则转移到本次搜索还没有调用过的可用URL
+     * 已经调用过的URL作为选择URL时的排除条件, 第一个URL记录在字段中, 调用第二个URL时才分配列表
+     */
+    private abstract class SearchCall<T> extends CompletableFuture<T> implements Predicate<String> {
+        protected final String keyword;
+        protected final int topN;
+        private final boolean hedgeable;
+        // 在途的调用数
+        private final AtomicInteger pending = new AtomicInteger();
+        // 第一个调用的URL
+        private String firstUrl;
+        // 之后调用的URL
+        private List<String> moreUrls;
+        // 当前URL的对冲计时, 失败转移及完成时取消
+        private ScheduledFuture<?> hedgeTimer;
+        // 每次搜索最多对冲一次
+        private boolean hedgeSent;
+
+        private SearchCall(String keyword, int topN, boolean hedgeable) {
+            this.keyword = keyword;
+            this.topN = topN;
+            this.hedgeable = hedgeable;
+        }
+
+        /**
+         * 调用指定的URL
+         * @param url
+         * @return
+         */
+        protected abstract CompletableFuture<T> invoke(String url);
+
+        /**
+         * @return 没有可用URL时的结果
+         */
+        protected abstract T fallback();
+
+        /**
+         * @return 调用失败后是否可以转移到其它URL
+         */
+        protected boolean failoverAllowed(){
+            return true;
+        }
+
+        /**
+         * 选择一个URL发起调用, 启用对冲时在对冲延迟后把同样的请求发给另一个URL
+         */
+        private void next() {
+            String url = nextUrl(excluded());
+            if(url == null){
+                if(pending.get() == 0) {
+                    LOGGER.error("搜索服务没有可以使用的URL!");
+                    completeWithFallback();
+                }
+                return;
+            }
+            call(url, false);
+            if(hedgeable && hedgePolicy.isEnabled() && !isDone()){
+                scheduleHedge();
+            }
+        }
+
+        /**
+         * 为刚刚调用的URL对冲计时, 失败转移时取消上一个URL的计时
+         * 一次搜索只积累一次对冲额度, 已经对冲过时不再计时
+         */
+        private synchronized void scheduleHedge(){
+            if(hedgeTimer == null){
+                hedgePolicy.onRequest();
+                whenComplete((r, e) -> cancelHedge());
+            }else{
+                hedgeTimer.cancel(false);
+            }
+            if(!hedgeSent) {
+                hedgeTimer = timerExecutorService.schedule(() -> hedge(),
+                        hedgePolicy.getDelayMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void cancelHedge(){
+            if(hedgeTimer != null) {
+                hedgeTimer.cancel(false);
+            }
+        }
+
+        private synchronized boolean markHedged(){
+            if(hedgeSent){
+                return false;
+            }
+            hedgeSent = true;
+            return true;
+        }
+
+        /**
+         * 在对冲延迟内没有返回, 在对冲额度允许时把请求发给另一个URL
+         */
+        private void hedge() {
+            if(isDone() || !markHedged() || !hedgePolicy.tryHedge()){
+                return;
+            }
+            String url = nextUrl(excluded());
+            if(url != null){
+                call(url, true);
+            }
+        }
+
+        private void completeWithFallback(){
+            try {
+                complete(fallback());
+            }catch (Throwable e){
+                completeExceptionally(e);
             }
         }
-        LOGGER.error("搜索服务没有可以使用的URL!");
-        return "[]";
+
+        /**
+         * @return 还没有调用过URL时返回null, 选择URL时不需要检查排除条件
+         */
+        private synchronized Predicate<String> excluded(){
+            return firstUrl == null ? null : this;
+        }
+
+        /**
+         * 本次搜索是否已经调用过这个URL
+         * @param url
+         * @return
+         */
+        @Override
+        public synchronized boolean test(String url) {
+            return url.equals(firstUrl) || (moreUrls != null && moreUrls.contains(url));
+        }
+
+        private synchronized void called(String url){
+            if(firstUrl == null){
+                firstUrl = url;
+                return;
+            }
+            if(moreUrls == null){
+                moreUrls = new ArrayList<>(2);
+            }
+            moreUrls.add(url);
+        }
+
+        private void call(String url, boolean hedged) {
+            called(url);
+            pending.incrementAndGet();
+            CircuitBreaker<String> breaker = breaker(url);
+            LoadBalancer<String> balancer = SearchAPIImpl.this.balancer;
+            balancer.onStart(url);
+            long start = System.nanoTime();
+            CompletableFuture<T> future = invoke(url);
+            // 已有调用胜出, 取消本次调用
+            whenComplete((r, e) -> future.cancel(false));
+            future.whenComplete((r, ex) -> {
+                int remaining = pending.decrementAndGet();
+                long cost = System.nanoTime() - start;
+                // 被取消的调用按已经花费的时间记录, 它至少比胜出的调用慢
+                balancer.onComplete(url, cost, ex == null || future.isCancelled());
+                if(ex == null){
+                    limiter.onComplete(url, cost, true);
+                    breaker.onSuccess();
+                    latency(url).record(cost);
+                    hedgePolicy.record(TimeUnit.NANOSECONDS.toMillis(cost));
+                    if(complete(r) && hedged){
+                        hedgePolicy.onHedgeWin();
+                    }
+                    return;
+                }
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                if(cause instanceof CancellationException){
+                    // 输给了其它调用
+                    breaker.onCancel();
+                    limiter.onCancel(url);
+                    return;
+                }
+                if(cause instanceof RejectedExecutionException){
+                    // 本地在途请求数已达上限, 与URL是否可用无关, 不做失败转移
+                    breaker.onCancel();
+                    limiter.onCancel(url);
+                    LOGGER.error("搜索服务在途请求数已达上限, 拒绝调用, keyword: {}, topN: {}", keyword, topN);
+                    if(remaining == 0) {
+                        completeWithFallback();
+                    }
+                    return;
+                }
+                breaker.onFailure();
+                limiter.onComplete(url, cost, false);
+                LOGGER.error("异常信息: ", cause);
+                LOGGER.error("调用搜索服务失败, keyword: {}, topN: {}, url: {}", keyword, topN, url);
+                if(remaining == 0 && !isDone()) {
+                    if(failoverAllowed()) {
+                        next();
+                    }else{
+                        completeExceptionally(cause);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 读取完整结果的搜索, 可以发送对冲请求
+     */
+    private class BufferedSearchCall extends SearchCall<String> {
+        private BufferedSearchCall(String keyword, int topN) {
+            super(keyword, topN, true);
+        }
+
+        @Override
+        protected CompletableFuture<String> invoke(String url) {
+            return httpClient.get(query(url, keyword, topN), timeout(url));
+        }
+
+        @Override
+        protected String fallback() {
+            return "[]";
+        }
+    }
+
+    /**
+     * 把结果写入调用方通道的搜索, 不发送对冲请求, 已经写入部分内容后不能转移到其它URL
+     */
+    private class StreamingSearchCall extends SearchCall<Long> {
+        private final CountingChannel target;
+
+        private StreamingSearchCall(String keyword, int topN, CountingChannel target) {
+            super(keyword, topN, false);
+            this.target = target;
+        }
+
+        @Override
+        protected CompletableFuture<Long> invoke(String url) {
+            return httpClient.get(query(url, keyword, topN), timeout(url), target);
+        }
+
+        @Override
+        protected Long fallback() {
+            return writeEmptyResult(target);
+        }
+
+        @Override
+        protected boolean failoverAllowed() {
+            return target.written == 0;
+        }
     }
 
-    private void callSuccess(String url){
-        callSuccessHistories.putIfAbsent(url, new AtomicInteger());
-        callSuccessHistories.get(url).incrementAndGet();
+    /**
+     * 统计写入的字节数
+     */
+    private static class CountingChannel implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private volatile long written;
+
+        private CountingChannel(WritableByteChannel target) {
+            this.target = target;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = target.write(src);
+            written += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
     }
-    private void callFailure(String url){
-        callFailureHistories.putIfAbsent(url, new AtomicInteger());
-        callFailureHistories.get(url).incrementAndGet();
+
+    private String encode(String keyword){
+        try {
+            return URLEncoder.encode(keyword, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
+
     private void urlUnavailable(String url){
-        availableUrls.remove(url);
-        if(!unavailableUrls.contains(url)) {
-            unavailableUrls.add(url);
+        synchronized (urlsLock) {
+            availableUrls = without(availableUrls, url);
+            unavailableUrls = with(unavailableUrls, url);
         }
     }
     private void urlAvailable(String url){
-        if(!availableUrls.contains(url)) {
-            availableUrls.add(url);
+        synchronized (urlsLock) {
+            availableUrls = with(availableUrls, url);
+            unavailableUrls = without(unavailableUrls, url);
         }
-        unavailableUrls.remove(url);
     }
-    private String get(String url) throws Exception{
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
 
-        connection.setRequestMethod("GET");
-        connection.setReadTimeout(timeout);
-        connection.connect();
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        StringBuilder response = new StringBuilder();
+    private static List<String> with(List<String> urls, String url){
+        if(urls.contains(url)){
+            return urls;
+        }
+        List<String> result = new ArrayList<>(urls);
+        result.add(url);
+        return LoadBalancers.snapshot(result);
+    }
 
-        String line = null;
-        while ((line = reader.readLine()) != null){
-            response.append(line + "\n");
+    private static List<String> without(List<String> urls, String url){
+        if(!urls.contains(url)){
+            return urls;
         }
-        return response.toString();
+        List<String> result = new ArrayList<>(urls);
+        result.remove(url);
+        return LoadBalancers.snapshot(result);
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,162 @@
+package org.apdplat.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 耗时直方图, 以微秒为单位记录耗时
+ * 桶按对数线性划分: 每个2的幂区间再线性划分为16个子桶, 任何耗时的相对误差不超过1/16
+ * 桶的数量固定, 覆盖1微秒到约19小时, 占用内存固定(约4KB), 记录耗时只做原子加, 不分配对象, 可以在全量请求上常开
+ * 百分位通过snapshot获得, 两个快照相减可以得到一段时间内的耗时分布
+ */
+public class LatencyHistogram {
+    // 每个2的幂区间划分的子桶数 = 2^SUB_BUCKET_BITS
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 可以区分的最大耗时为 2^(MAX_EXPONENT+1) 微秒, 超出的耗时记入最后一个桶
+    private static final int MAX_EXPONENT = 35;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * 记录一次耗时
+     * @param costNanos
+     */
+    public void record(long costNanos){
+        long micros = Math.max(0, costNanos / 1000);
+        counts.incrementAndGet(bucketIndex(micros));
+        totalMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)){
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * 当前耗时分布的快照, 快照是自创建以来的累计值
+     * @return
+     */
+    public Snapshot snapshot(){
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for(int i=0; i<BUCKETS; i++){
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, totalMicros.get(), maxMicros.get());
+    }
+
+    private static int bucketIndex(long micros){
+        if(micros < SUB_BUCKETS){
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if(exponent > MAX_EXPONENT){
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        // micros >>> shift 落在 [SUB_BUCKETS, 2*SUB_BUCKETS) 之间
+        return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * 桶内的最大耗时
+     * @param index
+     * @return
+     */
+    private static long bucketUpperBound(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * 耗时分布的快照, 不可变
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long totalMicros;
+        private final long maxMicros;
+
+        private Snapshot(long[] counts, long count, long totalMicros, long maxMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros(){
+            return count == 0 ? 0 : totalMicros / count;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * 百分位耗时, 返回所在桶的最大耗时, 不超过记录到的最大耗时
+         * @param percentile 如 50, 99, 99.9
+         * @return 微秒, 没有记录时返回0
+         */
+        public long getPercentileMicros(double percentile){
+            if(count == 0){
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for(int i=0; i<counts.length; i++){
+                seen += counts[i];
+                if(seen >= rank){
+                    return Math.min(bucketUpperBound(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        /**
+         * 两个快照之间的耗时分布
+         * @param earlier 同一个直方图更早的快照
+         * @return
+         */
+        public Snapshot since(Snapshot earlier){
+            long[] diff = new long[counts.length];
+            long diffCount = 0;
+            int highest = -1;
+            for(int i=0; i<counts.length; i++){
+                diff[i] = counts[i] - earlier.counts[i];
+                diffCount += diff[i];
+                if(diff[i] > 0){
+                    highest = i;
+                }
+            }
+            // 最大耗时无法相减, 用区间内最高的非空桶估计
+            long max = highest < 0 ? 0 : Math.min(bucketUpperBound(highest), maxMicros);
+            return new Snapshot(diff, diffCount, totalMicros - earlier.totalMicros, max);
+        }
+
+        @Override
+        public String toString() {
+            return "调用 " + count + " 次"
+                    + ", 耗时(毫秒) 平均 " + millis(getMeanMicros())
+                    + ", p50 " + millis(getPercentileMicros(50))
+                    + ", p99 " + millis(getPercentileMicros(99))
+                    + ", p999 " + millis(getPercentileMicros(99.9))
+                    + ", 最大 " + millis(maxMicros);
+        }
+
+        private static String millis(long micros){
+            return String.format("%.2f", micros / 1000.0);
+        }
+    }
+}
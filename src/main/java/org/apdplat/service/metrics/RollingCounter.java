@@ -0,0 +1,181 @@
+package org.apdplat.service.metrics;
+
+import org.apdplat.service.utils.TimeUtils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 滚动时间窗口内的调用成功及失败次数
+ * 按秒和按分钟各用一个固定大小的环形数组计数, 占用内存固定, 不随时间增长
+ * 记录只做原子加, 只有进入新的一秒或者一分钟时才分配对象及加锁清零过期的桶
+ * 60秒以内的窗口按秒统计, 更长的窗口按分钟统计, 最长15分钟
+ * 同时保留自创建以来的累计次数
+ */
+public class RollingCounter {
+    private static final int SECONDS = 60;
+    private static final int MINUTES = 15;
+    // 状态输出的窗口
+    private static final int[] STATUS_WINDOW_MINUTES = {1, 5, 15};
+
+    /**
+     * 可以统计的最长窗口
+     */
+    public static final long MAX_WINDOW_MILLIS = MINUTES * 60_000L;
+
+    private final Ring seconds = new Ring(SECONDS, 1000);
+    private final Ring minutes = new Ring(MINUTES, 60_000);
+    private final LongAdder successTimes = new LongAdder();
+    private final LongAdder failureTimes = new LongAdder();
+    private final long createdMillis = System.currentTimeMillis();
+    // 当前这一秒所属的分钟, 每秒计算一次
+    private volatile Second second = new Second(0, 0);
+
+    public void record(boolean success){
+        long now = System.currentTimeMillis();
+        long secondStart = now - now % 1000;
+        Second second = this.second;
+        if(second.start != secondStart){
+            second = new Second(secondStart, TimeUtils.trimToMinute(secondStart));
+            this.second = second;
+        }
+        seconds.record(secondStart, success);
+        minutes.record(second.minuteStart, success);
+        if(success){
+            successTimes.increment();
+        }else{
+            failureTimes.increment();
+        }
+    }
+
+    /**
+     * 滚动窗口内的调用次数
+     * @param windowMillis 窗口长度, 超过15分钟按15分钟统计
+     * @param sinceMillis 只统计这个时间之后开始的桶, 用于丢弃重置之前的记录
+     * @return 成功次数, 失败次数
+     */
+    public long[] counts(long windowMillis, long sinceMillis){
+        long now = System.currentTimeMillis();
+        windowMillis = Math.min(windowMillis, MAX_WINDOW_MILLIS);
+        Ring ring = windowMillis <= SECONDS * 1000L ? seconds : minutes;
+        return ring.sum(now - windowMillis, sinceMillis);
+    }
+
+    /**
+     * 自创建以来的成功次数
+     * @return
+     */
+    public long getSuccessTimes(){
+        return successTimes.sum();
+    }
+
+    /**
+     * 自创建以来的失败次数
+     * @return
+     */
+    public long getFailureTimes(){
+        return failureTimes.sum();
+    }
+
+    /**
+     * 最近1分钟, 5分钟, 15分钟的成功及失败次数, 每秒成功及失败次数, QPS和错误率
+     * @return
+     */
+    public String getStatus(){
+        long now = System.currentTimeMillis();
+        StringBuilder status = new StringBuilder();
+        for(int minute : STATUS_WINDOW_MINUTES){
+            long windowMillis = minute * 60_000L;
+            Ring ring = minute == 1 ? seconds : minutes;
+            long[] counts = ring.sum(now - windowMillis, 0);
+            // 窗口实际覆盖的时间, 从第一个可能计入的桶开始, 刚创建时从创建开始, 至少1秒
+            long first = Math.max(ring.trim(now - windowMillis) + ring.bucketMillis, createdMillis);
+            double seconds = Math.max(1000, now - first) / 1000.0;
+            long total = counts[0] + counts[1];
+            if(status.length() > 0){
+                status.append("; ");
+            }
+            status.append("最近").append(minute).append("分钟: 成功 ").append(counts[0]).append(" 次 ")
+                    .append(String.format("%.2f", counts[0] / seconds)).append("/秒")
+                    .append(", 失败 ").append(counts[1]).append(" 次 ")
+                    .append(String.format("%.2f", counts[1] / seconds)).append("/秒")
+                    .append(", QPS ").append(String.format("%.2f", total / seconds))
+                    .append(", 错误率 ").append(total == 0 ? "0.00" : String.format("%.2f", counts[1] * 100.0 / total)).append("%");
+        }
+        return status.toString();
+    }
+
+    private static class Second {
+        private final long start;
+        private final long minuteStart;
+
+        private Second(long start, long minuteStart) {
+            this.start = start;
+            this.minuteStart = minuteStart;
+        }
+    }
+
+    /**
+     * 固定数量的桶组成的环, 每个桶记录开始时间及计数, 开始时间过期的桶在下一次使用时清零
+     */
+    private static class Ring {
+        private final int size;
+        private final long bucketMillis;
+        private final AtomicLongArray starts;
+        private final AtomicLongArray successes;
+        private final AtomicLongArray failures;
+
+        private Ring(int size, long bucketMillis) {
+            this.size = size;
+            this.bucketMillis = bucketMillis;
+            this.starts = new AtomicLongArray(size);
+            this.successes = new AtomicLongArray(size);
+            this.failures = new AtomicLongArray(size);
+        }
+
+        private long trim(long time){
+            return bucketMillis == 60_000 ? TimeUtils.trimToMinute(time) : time - time % bucketMillis;
+        }
+
+        /**
+         * @param bucketStart 对齐到桶长度的时间
+         * @param success
+         */
+        private void record(long bucketStart, boolean success){
+            int index = (int) ((bucketStart / bucketMillis) % size);
+            if(starts.get(index) < bucketStart){
+                synchronized (this){
+                    if(starts.get(index) < bucketStart){
+                        successes.set(index, 0);
+                        failures.set(index, 0);
+                        starts.set(index, bucketStart);
+                    }
+                }
+            }
+            // 开始时间更晚说明桶已经被后来的调用重用, 迟到的记录计入新的桶
+            if(success){
+                successes.incrementAndGet(index);
+            }else{
+                failures.incrementAndGet(index);
+            }
+        }
+
+        /**
+         * @param after 只统计开始时间晚于这个时间的桶
+         * @param since 只统计开始时间不早于这个时间的桶
+         * @return 成功次数, 失败次数
+         */
+        private long[] sum(long after, long since){
+            long successTimes = 0;
+            long failureTimes = 0;
+            for(int i=0; i<size; i++){
+                long start = starts.get(i);
+                if(start > after && start >= since){
+                    successTimes += successes.get(i);
+                    failureTimes += failures.get(i);
+                }
+            }
+            return new long[]{successTimes, failureTimes};
+        }
+    }
+}
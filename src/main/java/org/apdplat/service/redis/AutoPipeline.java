@@ -0,0 +1,244 @@
+package org.apdplat.service.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 自动管道
+ * 多个线程提交的命令进入队列, 由刷新线程合并为一批, 用一个连接以管道方式发送, 一次往返完成整批命令
+ * 每个刷新线程有自己的队列, 命令按KEY的哈希值进入队列, 同一个KEY的命令由同一个刷新线程按提交顺序发送,
+ * 比如同一个KEY先SET后GET, GET一定读到SET写入的值, 不同KEY的命令之间不保证顺序
+ * 队列中的命令达到批大小, 或者第一个命令等待超过linger时间后发送
+ * 上一批命令在途期间到达的命令自然积累为下一批, 吞吐量随批大小增长, 而不再受限于连接数
+ * 排队的命令数有上限, 超出时立即拒绝, 避免REDIS服务变慢时命令无限堆积
+ * 命令的结果在刷新线程上完成, 依赖返回的future的回调不应阻塞
+ * 每个命令可以带一个附件, 发送后随整批命令通知使用方, 比如提交命令时使用的负载均衡策略
+ * @param <A> 附件的类型
+ */
+public class AutoPipeline<A> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AutoPipeline.class);
+    private static final int DEFAULT_CONNECTIONS = 2;
+    private static final int DEFAULT_MAX_BATCH = 100;
+    private static final long DEFAULT_LINGER_MICROS = 50;
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /**
+     * 每发送一批命令通知一次
+     */
+    public interface Listener<A> {
+        /**
+         * @param attachments 批中每个命令的附件, 按命令的顺序, 命令数为attachments.size()
+         * @param costNanos 借用连接及发送整批命令的耗时
+         * @param error 连接或者网络错误, 成功时为null, 单个命令的错误不在这里通知
+         */
+        void onBatch(List<A> attachments, long costNanos, Throwable error);
+    }
+
+    private final String name;
+    private final JedisPool pool;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final Listener<A> listener;
+    // 每个刷新线程一个队列
+    private final List<BlockingQueue<Command<A, ?>>> queues;
+    private final Thread[] flushers;
+
+    private final LongAdder batchTimes = new LongAdder();
+    private final LongAdder commandTimes = new LongAdder();
+    private final LongAdder rejectedTimes = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /**
+     * 配置不正确时记录错误并使用默认配置
+     * @param name 用于线程名及状态输出, 如 REDIS服务的 ip:port
+     * @param pool
+     * @param connections 刷新线程数, 也是同时在途的批数
+     * @param maxBatch 每批最多的命令数
+     * @param lingerMicros 第一个命令到达后最多等待多少微秒凑成一批
+     * @param queueCapacity 排队命令数上限, 平均分给各个刷新线程的队列
+     * @param listener
+     */
+    public AutoPipeline(String name, JedisPool pool, int connections, int maxBatch, long lingerMicros,
+                        int queueCapacity, Listener<A> listener){
+        if(connections <= 0 || maxBatch <= 0 || lingerMicros < 0 || queueCapacity <= 0){
+            LOGGER.error("自动管道配置不正确, 使用默认配置, 连接数, 批大小及队列容量必须大于0, 等待时间不能小于0: "
+                    + connections + ", " + maxBatch + ", " + lingerMicros + ", " + queueCapacity);
+            connections = DEFAULT_CONNECTIONS;
+            maxBatch = DEFAULT_MAX_BATCH;
+            lingerMicros = DEFAULT_LINGER_MICROS;
+            queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        }
+        this.name = name;
+        this.pool = pool;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        this.listener = listener;
+        int capacity = (queueCapacity + connections - 1) / connections;
+        this.queues = new ArrayList<>(connections);
+        this.flushers = new Thread[connections];
+        for(int i=0; i<connections; i++){
+            BlockingQueue<Command<A, ?>> queue = new ArrayBlockingQueue<>(capacity);
+            queues.add(queue);
+            flushers[i] = new Thread(()->flushLoop(queue), "redis-pipeline-" + name + "-" + i);
+            flushers[i].setDaemon(true);
+            flushers[i].start();
+        }
+    }
+
+    /**
+     * 提交一个命令, 同一个KEY的命令按提交顺序发送
+     * @param key 命令操作的KEY, 决定命令进入哪个刷新线程的队列
+     * @param attachment 命令的附件, 发送后通知使用方
+     * @param command 在管道上发送命令, 如 p -> p.get(key)
+     * @param <T>
+     * @return 命令的结果
+     * @throws RejectedExecutionException 自动管道已经关闭或者排队命令数已达上限
+     */
+    public <T> CompletableFuture<T> submit(Object key, A attachment, Function<Pipeline, Response<T>> command){
+        if(!running){
+            throw new RejectedExecutionException("自动管道已经关闭: " + name);
+        }
+        Command<A, T> c = new Command<>(attachment, command);
+        if(!queue(key).offer(c)){
+            rejectedTimes.increment();
+            throw new RejectedExecutionException("自动管道排队命令数已达上限: " + name);
+        }
+        return c.future;
+    }
+
+    public void close(){
+        running = false;
+        for(Thread flusher : flushers){
+            flusher.interrupt();
+        }
+        List<Command<A, ?>> remaining = new ArrayList<>();
+        for(BlockingQueue<Command<A, ?>> queue : queues){
+            queue.drainTo(remaining);
+        }
+        RejectedExecutionException closed = new RejectedExecutionException("自动管道已经关闭: " + name);
+        remaining.forEach(c -> c.future.completeExceptionally(closed));
+    }
+
+    public String getStatus(){
+        long batches = batchTimes.sum();
+        long commands = commandTimes.sum();
+        int queued = 0;
+        for(BlockingQueue<Command<A, ?>> queue : queues){
+            queued += queue.size();
+        }
+        return "自动管道: 批次 " + batches
+                + ", 命令 " + commands
+                + ", 平均批大小 " + (batches == 0 ? 0 : commands / batches)
+                + ", 排队 " + queued
+                + ", 队列满被拒绝 " + rejectedTimes.sum();
+    }
+
+    private BlockingQueue<Command<A, ?>> queue(Object key){
+        int h = key == null ? 0 : key.hashCode();
+        return queues.get(Math.floorMod(h ^ (h >>> 16), queues.size()));
+    }
+
+    private void flushLoop(BlockingQueue<Command<A, ?>> queue){
+        List<Command<A, ?>> batch = new ArrayList<>(maxBatch);
+        while (running){
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatch){
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if(batch.size() >= maxBatch || remaining <= 0){
+                        break;
+                    }
+                    Command<A, ?> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null){
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // 关闭时中断, 已经取出的命令仍然发送
+            }
+            if(!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Command<A, ?>> batch){
+        long start = System.nanoTime();
+        Throwable error = null;
+        Jedis jedis = null;
+        try {
+            jedis = pool.getResource();
+            Pipeline pipeline = jedis.pipelined();
+            for(Command<A, ?> c : batch){
+                c.send(pipeline);
+            }
+            pipeline.sync();
+        }catch (Throwable e){
+            error = e;
+            LOGGER.error("自动管道发送命令失败: " + name + ", 命令数: " + batch.size(), e);
+        }finally {
+            if(jedis != null){
+                jedis.close();
+            }
+        }
+        batchTimes.increment();
+        commandTimes.add(batch.size());
+        long costNanos = System.nanoTime() - start;
+        List<A> attachments = new ArrayList<>(batch.size());
+        for(Command<A, ?> c : batch){
+            attachments.add(c.attachment);
+        }
+        try {
+            listener.onBatch(attachments, costNanos, error);
+        }catch (Throwable e){
+            LOGGER.error("自动管道通知失败: " + name, e);
+        }
+        for(Command<A, ?> c : batch){
+            if(error == null){
+                c.complete();
+            }else{
+                c.future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private static class Command<A, T> {
+        private final A attachment;
+        private final Function<Pipeline, Response<T>> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private Response<T> response;
+
+        private Command(A attachment, Function<Pipeline, Response<T>> command) {
+            this.attachment = attachment;
+            this.command = command;
+        }
+
+        private void send(Pipeline pipeline){
+            response = command.apply(pipeline);
+        }
+
+        private void complete(){
+            try {
+                // 单个命令的错误, 比如类型不匹配, 在这里抛出
+                future.complete(response.get());
+            }catch (Throwable e){
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
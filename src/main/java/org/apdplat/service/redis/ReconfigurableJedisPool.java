@@ -0,0 +1,72 @@
+package org.apdplat.service.redis;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 可以修改配置的连接池
+ * 配置重新加载时连接池的配置直接作用在原来的连接池上, 已经建立的连接保留
+ * 连接地址, 密码及读超时在创建连接时使用, 这些配置变化时只能重建连接池
+ * 连接归还时可以通知使用方连接是否正常
+ */
+public class ReconfigurableJedisPool extends JedisPool {
+    /**
+     * 连接归还到连接池时通知
+     */
+    public interface ReturnListener {
+        /**
+         * @param jedis
+         * @param broken 连接出错, 不再放回连接池
+         */
+        void onReturn(Jedis jedis, boolean broken);
+    }
+
+    private volatile ReturnListener returnListener;
+
+    public ReconfigurableJedisPool(GenericObjectPoolConfig config, String ip, int port, int timeout, String password) {
+        super(config, ip, port, timeout, password);
+    }
+
+    /**
+     * 修改连接数上限, 空闲连接数, 逐出策略等配置
+     * @param config
+     */
+    public void reconfigure(GenericObjectPoolConfig config){
+        internalPool.setConfig(config);
+    }
+
+    public void setReturnListener(ReturnListener returnListener) {
+        this.returnListener = returnListener;
+    }
+
+    /**
+     * Jedis.close归还正常的连接时经过这里, 这个版本的jedis把它标记为过时但仍在使用
+     * @param resource
+     */
+    @SuppressWarnings("deprecation")
+    @Override
+    public void returnResourceObject(Jedis resource) {
+        try {
+            super.returnResourceObject(resource);
+        } finally {
+            notifyReturn(resource, false);
+        }
+    }
+
+    @Override
+    protected void returnBrokenResourceObject(Jedis resource) {
+        try {
+            super.returnBrokenResourceObject(resource);
+        } finally {
+            notifyReturn(resource, true);
+        }
+    }
+
+    private void notifyReturn(Jedis resource, boolean broken){
+        ReturnListener listener = returnListener;
+        if(listener != null && resource != null){
+            listener.onReturn(resource, broken);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.apdplat.service.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 副本修复记录
+ * 副本写入模式下, 写入时不可用或者写入失败的副本记录下错过的KEY, 副本恢复可用后从其它副本复制这些KEY
+ * 有待修复KEY的副本数据可能过时, 读取时应当避开
+ * 每个副本记录的KEY数有上限, 超出时放弃记录, 这个副本只能人工同步, 配置重新加载前不再参与读取
+ * 按KEY的哈希分条记录写入次数及未完成的写入数, 修复期间KEY被再次写入时, 复制的值可能已经过时, 重新记录等待下次修复
+ * 有未完成写入的KEY暂不修复, 来源副本上的值可能还不是最终的值
+ */
+public class ReplicaRepairs<R> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaRepairs.class);
+    private static final int STRIPES = 1024;
+
+    /**
+     * 从其它副本复制一个KEY到待修复的副本
+     */
+    public interface Copier {
+        /**
+         * @param key
+         * @throws Exception 复制失败, KEY保留在待修复记录中
+         */
+        void copy(String key) throws Exception;
+    }
+
+    private final Map<R, Pending> pendings = new ConcurrentHashMap<>();
+    private final AtomicLongArray writeStamps = new AtomicLongArray(STRIPES);
+    private final AtomicIntegerArray inFlightWrites = new AtomicIntegerArray(STRIPES);
+    private final Function<R, String> namer;
+
+    private volatile int maxKeys = 100000;
+
+    /**
+     * @param namer 副本的名称, 用于日志及状态输出
+     */
+    public ReplicaRepairs(Function<R, String> namer){
+        this.namer = namer;
+    }
+
+    /**
+     * @param maxKeys 每个副本最多记录的待修复KEY数
+     */
+    public void configure(int maxKeys){
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * 发出KEY的写入前调用, 必须以endWrite结束
+     * @param key
+     */
+    public void beginWrite(String key){
+        int stripe = stripe(key);
+        inFlightWrites.incrementAndGet(stripe);
+        writeStamps.incrementAndGet(stripe);
+    }
+
+    /**
+     * 发给所有副本的写入都已经结束(成功或者失败)时调用
+     * @param key
+     */
+    public void endWrite(String key){
+        int stripe = stripe(key);
+        writeStamps.incrementAndGet(stripe);
+        inFlightWrites.decrementAndGet(stripe);
+    }
+
+    /**
+     * 副本错过了KEY的写入
+     * @param replica
+     * @param key
+     */
+    public void missed(R replica, String key){
+        Pending pending = pendings.computeIfAbsent(replica, r -> new Pending());
+        if(pending.overflowed){
+            return;
+        }
+        pending.keys.add(key);
+        if(pending.keys.size() > maxKeys){
+            pending.overflowed = true;
+            pending.keys.clear();
+            LOGGER.error("副本错过的写入超过 {} 个KEY, 不再记录, 需要人工同步: {}", maxKeys, namer.apply(replica));
+        }
+    }
+
+    /**
+     * 副本是否可能有过时的数据
+     * @param replica
+     * @return
+     */
+    public boolean isPending(R replica){
+        Pending pending = pendings.get(replica);
+        return pending != null && (pending.overflowed || !pending.keys.isEmpty());
+    }
+
+    public boolean hasPending(){
+        for(R replica : pendings.keySet()){
+            if(isPending(replica)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 逐个复制副本错过的KEY, 第一次复制失败时停止, 剩下的KEY等待下次修复
+     * 有未完成写入的KEY跳过, 等待下次修复
+     * @param replica
+     * @param copier
+     * @return 修复的KEY数
+     */
+    public int repair(R replica, Copier copier){
+        Pending pending = pendings.get(replica);
+        if(pending == null || pending.overflowed){
+            return 0;
+        }
+        int repaired = 0;
+        // 修复期间重新记录的KEY留到下次修复
+        for(String key : new ArrayList<>(pending.keys)){
+            int stripe = stripe(key);
+            if(inFlightWrites.get(stripe) > 0){
+                continue;
+            }
+            long stamp = writeStamps.get(stripe);
+            pending.keys.remove(key);
+            try {
+                copier.copy(key);
+            }catch (Throwable e){
+                pending.keys.add(key);
+                LOGGER.error("修复副本失败: " + namer.apply(replica) + ", KEY: " + key, e);
+                break;
+            }
+            if(writeStamps.get(stripe) != stamp){
+                // 复制期间KEY被再次写入, 复制的值可能已经过时
+                pending.keys.add(key);
+                continue;
+            }
+            pending.repairedTimes.increment();
+            repaired++;
+        }
+        if(repaired > 0) {
+            LOGGER.info("修复副本 {} 个KEY, 剩余 {} 个: {}", repaired, pending.keys.size(), namer.apply(replica));
+        }
+        return repaired;
+    }
+
+    public void clear(){
+        pendings.clear();
+    }
+
+    /**
+     * 副本已经移除, 不再保留它的修复记录
+     * @param replica
+     */
+    public void remove(R replica){
+        pendings.remove(replica);
+    }
+
+    public String getStatus(R replica){
+        Pending pending = pendings.get(replica);
+        if(pending == null){
+            return "待修复KEY: 0";
+        }
+        return "待修复KEY: " + (pending.overflowed ? "超出上限, 需要人工同步" : pending.keys.size())
+                + ", 已修复KEY: " + pending.repairedTimes.sum();
+    }
+
+    private int stripe(String key){
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+    private static class Pending {
+        private final Set<String> keys = ConcurrentHashMap.newKeySet();
+        private final LongAdder repairedTimes = new LongAdder();
+        private volatile boolean overflowed;
+    }
+}
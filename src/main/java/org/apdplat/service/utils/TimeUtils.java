@@ -8,33 +8,78 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * 时间工具
+ * SimpleDateFormat不是线程安全的, 每个线程每种格式缓存一个, DateTimeFormatter是线程安全的, 每种格式缓存一个
+ * 裁剪到分钟, 小时, 天按本地时区的偏移计算, 不格式化及解析字符串
+ * 时区在类加载时确定
  * Created by ysc on 7/6/16.
  */
 public class TimeUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(TimeUtils.class);
 
+    private static final String DEFAULT_PATTERN = "yyyy/MM/dd HH:mm:ss";
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    // 缓存的DateTimeFormatter最多这么多种格式, 超过后不再缓存, 避免格式字符串是动态拼接时无限增长
+    private static final int MAX_CACHED_PATTERNS = 64;
+
+    // TimeZone.getDefault()每次返回一个副本, 在这里保留一个
+    private static final TimeZone TIME_ZONE = TimeZone.getDefault();
+    private static final Map<String, DateTimeFormatter> DATE_TIME_FORMATTERS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Map<String, DateFormat>> DATE_FORMATS = ThreadLocal.withInitial(HashMap::new);
+
     private TimeUtils(){}
 
     public static long fromString(String time) {
-        return fromString(time, "yyyy/MM/dd HH:mm:ss");
+        return fromString(time, DEFAULT_PATTERN);
     }
 
     /**
      * 将时间裁剪到分钟
+     * 按本地时区的偏移计算, 不格式化及解析字符串, 可以在调用路径上使用
      * @param time
      * @return
      */
     public static long trimToMinute(long time){
-        return fromString(toString(time, "yyyy/MM/dd HH:mm"), "yyyy/MM/dd HH:mm");
+        long offset = TIME_ZONE.getOffset(time);
+        return time - Math.floorMod(time + offset, MINUTE);
+    }
+
+    /**
+     * 将时间裁剪到小时, 时区偏移不是整小时(如+05:30)时按本地时间的整点裁剪
+     * @param time
+     * @return
+     */
+    public static long trimToHour(long time){
+        long offset = TIME_ZONE.getOffset(time);
+        return time - Math.floorMod(time + offset, HOUR);
+    }
+
+    /**
+     * 将时间裁剪到本地时间的零点, 夏令时切换当天零点的偏移和当前时间的偏移可能不同
+     * @param time
+     * @return
+     */
+    public static long trimToDay(long time){
+        long local = time + TIME_ZONE.getOffset(time);
+        long localDay = local - Math.floorMod(local, DAY);
+        // 先按当前时间的偏移估计零点, 再用零点的偏移修正
+        long midnight = localDay - TIME_ZONE.getOffset(time);
+        return localDay - TIME_ZONE.getOffset(midnight);
     }
 
     public static long fromString(String time, String pattern) {
         if(time == null || "null".equals(time)){
             return -1;
         }
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern);
+        SimpleDateFormat simpleDateFormat = dateFormat(pattern).format;
         Date date = null;
         try {
             date = simpleDateFormat.parse(time);
@@ -105,25 +150,94 @@ public class TimeUtils {
     }
 
     public static LocalDateTime parse(String text){
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-        return LocalDateTime.parse(text, formatter);
+        return LocalDateTime.parse(text, dateTimeFormatter(DEFAULT_PATTERN));
     }
 
     public static String toString(LocalDateTime time){
-        return toString(time, "yyyy/MM/dd HH:mm:ss");
+        return toString(time, DEFAULT_PATTERN);
     }
 
     public static String toString(LocalDateTime time, String pattern){
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern);
-        return time.format(formatter);
+        return time.format(dateTimeFormatter(pattern));
     }
 
     public static String toString(long time){
-        return toString(time, "yyyy/MM/dd HH:mm:ss");
+        return toString(time, DEFAULT_PATTERN);
     }
 
+    /**
+     * 不包含毫秒的格式, 同一秒内重复格式化时返回上次的结果
+     * @param time
+     * @param pattern
+     * @return
+     */
     public static String toString(long time, String pattern){
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern);
-        return simpleDateFormat.format(new Date(time));
+        DateFormat dateFormat = dateFormat(pattern);
+        long second = Math.floorDiv(time, 1000);
+        if(dateFormat.secondly && dateFormat.lastSecond == second){
+            return dateFormat.last;
+        }
+        String text = dateFormat.format.format(new Date(time));
+        dateFormat.lastSecond = second;
+        dateFormat.last = text;
+        return text;
+    }
+
+    private static DateTimeFormatter dateTimeFormatter(String pattern){
+        DateTimeFormatter formatter = DATE_TIME_FORMATTERS.get(pattern);
+        if(formatter != null){
+            return formatter;
+        }
+        formatter = DateTimeFormatter.ofPattern(pattern);
+        if(DATE_TIME_FORMATTERS.size() < MAX_CACHED_PATTERNS){
+            DATE_TIME_FORMATTERS.putIfAbsent(pattern, formatter);
+        }
+        return formatter;
+    }
+
+    private static DateFormat dateFormat(String pattern){
+        Map<String, DateFormat> dateFormats = DATE_FORMATS.get();
+        DateFormat dateFormat = dateFormats.get(pattern);
+        if(dateFormat == null){
+            dateFormat = new DateFormat(pattern);
+            if(dateFormats.size() < MAX_CACHED_PATTERNS){
+                dateFormats.put(pattern, dateFormat);
+            }
+        }
+        return dateFormat;
+    }
+
+    /**
+     * 一个线程使用的SimpleDateFormat及最近一次格式化的结果
+     */
+    private static class DateFormat {
+        private final SimpleDateFormat format;
+        // 格式中没有毫秒时, 同一秒的格式化结果相同
+        private final boolean secondly;
+        private long lastSecond = Long.MIN_VALUE;
+        private String last;
+
+        private DateFormat(String pattern) {
+            this.format = new SimpleDateFormat(pattern);
+            this.secondly = !hasMillisecond(pattern);
+        }
+
+        /**
+         * 单引号内是原样输出的文字, 其中的S不是毫秒, 两个连续的单引号表示单引号本身
+         * @param pattern
+         * @return
+         */
+        private static boolean hasMillisecond(String pattern){
+            boolean quoted = false;
+            for(int i=0; i<pattern.length(); i++){
+                char c = pattern.charAt(i);
+                if(c == '\''){
+                    quoted = !quoted;
+                }else if(c == 'S' && !quoted){
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
\ No newline at end of file